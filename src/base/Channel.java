@@ -1,13 +1,9 @@
 package base;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 
 import org.zeromq.ZMQ;
 
-import utils.Utils;
-
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
@@ -25,6 +21,11 @@ public abstract class Channel implements com.google.protobuf.RpcChannel {
 	protected ZMQ.Context zmqContext;
 	protected ZMQ.Socket zmqSocket;
 	
+	/**
+	 * Reusable frame buffers for writing the multipart request message, guarded by the callMethod monitor
+	 */
+	protected FrameBuffer frameBuffer = new FrameBuffer();
+	
 	/**
 	 * hook for children class to initialize the zeromq socket to a specific type (e.g., RPC, pub-sub, push-pull)
 	 * 
@@ -55,20 +56,20 @@ public abstract class Channel implements com.google.protobuf.RpcChannel {
 	}
 	
 	/**
-	 * Hook for writing to binary stream for message transport; protected for children
-	 * class to customize binary stream writing  
+	 * Hook for writing the request as a multipart zeromq message; protected for children
+	 * class to customize the frames (e.g., adding a request id frame). By default the op-code is
+	 * sent as the first frame and the serialized arguments as the last frame
 	 * 
-	 * @param outputStream the binary stream object
-	 * @param opBytes the method operation code
+	 * @param opCode the method operation code
 	 * @param response protobuf service response object
 	 * @param request protobuf service request object 
 	 * @param done protobuf service callback
 	 * @throws IOException
 	 */
-	protected void writeStream(ByteArrayOutputStream outputStream, byte[] opBytes, 
-			Message response, Message request, RpcCallback<Message> done) throws IOException {
-		outputStream.write(opBytes);
-		outputStream.write(request.toByteArray());
+	protected void writeFrames(long opCode, Message response, Message request, 
+			RpcCallback<Message> done) throws IOException {
+		frameBuffer.sendLong(zmqSocket, opCode, ZMQ.SNDMORE);
+		frameBuffer.sendMessage(zmqSocket, request, 0);
 	}
 	
 	/**
@@ -84,16 +85,12 @@ public abstract class Channel implements com.google.protobuf.RpcChannel {
 	public synchronized void callMethod(MethodDescriptor methodDescriptor, RpcController controller,
 			Message request, Message response, RpcCallback<Message> done) {
 		
-		// convert the method descriptor from string to a unique byte-code
-		Long hashedCode = Utils.hashString(methodDescriptor.getFullName());
-		byte[] opBytes = ByteBuffer.allocate(Long.BYTES).putLong(hashedCode).array();
+		// look up the method descriptor's precomputed unique byte-code
+		long opCode = OpCodeTable.opCode(methodDescriptor);
 			
 		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			
-			// serialize to binary both the method descriptor byte-code and the method's arguments
-			writeStream(outputStream, opBytes, response, request, done);
-			zmqSocket.send(outputStream.toByteArray(), 0);
+			// serialize the method descriptor byte-code and the method's arguments as frames of one message
+			writeFrames(opCode, response, request, done);
 			
 			// call the children class' specific implementation of what-to-do after sending the request
 			onSend(response, done);
@@ -0,0 +1,62 @@
+package base;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Dispatchers provides the executors a Listener can hand decoded requests off to for calling the
+ * service implementation, keeping the receive thread free to read the socket
+ *
+ * @author paulcao
+ */
+public class Dispatchers {
+
+	private static final Executor INLINE = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private Dispatchers() {
+	}
+
+	/**
+	 * @return an executor calling services on the receive thread itself, the default for listeners
+	 */
+	public static Executor inline() {
+		return INLINE;
+	}
+
+	/**
+	 * @param threads number of threads calling services
+	 * @return an executor calling services on a fixed pool of threads
+	 */
+	public static ExecutorService fixedPool(int threads) {
+		return Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * @param stripes number of threads
+	 * @return an executor running the tasks of the same key one after the other and those of different keys
+	 * in parallel, on a fixed number of single-threaded stripes
+	 */
+	public static StripedExecutor striped(int stripes) {
+		return new StripedExecutor(stripes);
+	}
+	
+	/**
+	 * Looked up reflectively so the code base still builds and runs on JDKs without virtual threads
+	 *
+	 * @return an executor calling services on a new virtual thread per message
+	 * @throws UnsupportedOperationException if the running JDK has no virtual threads
+	 */
+	public static ExecutorService virtualThreadPerMessage() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Virtual threads are not available on this JDK", e);
+		}
+	}
+}
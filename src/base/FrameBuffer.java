@@ -0,0 +1,136 @@
+package base;
+
+import java.io.IOException;
+
+import org.zeromq.ZMQ;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+
+/**
+ * FrameBuffer writes the frames of a multipart zeromq message out of reusable byte arrays, so that
+ * op-codes, request ids and protobuf payloads are serialized exactly once per send without allocating
+ * intermediate streams, and reads the frames of received messages; an instance is not thread-safe and
+ * must be confined to whoever owns the socket
+ *
+ * @author paulcao
+ */
+public class FrameBuffer {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	/**
+	 * Frame following the empty response frame of an error reply, telling it apart from the response of an
+	 * empty message, which is a single empty frame
+	 */
+	private static final byte[] ERROR_FRAME = { 'E', 'R', 'R' };
+
+	private static final byte[] EMPTY_FRAME = new byte[0];
+
+	/**
+	 * Scratch array for 8-byte header frames such as method op-codes and request ids
+	 */
+	private final byte[] longBytes = new byte[Long.BYTES];
+
+	/**
+	 * Scratch array the protobuf payloads are serialized into, grown on demand and never shrunk
+	 */
+	private byte[] payloadBytes = new byte[INITIAL_CAPACITY];
+
+	/**
+	 * Sends a long value as a single big-endian 8-byte frame
+	 *
+	 * @param socket zeromq socket to send on
+	 * @param value the header value (e.g., op-code or request id)
+	 * @param flags zeromq send flags, usually ZMQ.SNDMORE
+	 * @return whether zeromq accepted the frame
+	 */
+	public boolean sendLong(ZMQ.Socket socket, long value, int flags) {
+		for (int i = Long.BYTES - 1; i >= 0; i--) {
+			longBytes[i] = (byte) value;
+			value >>>= 8;
+		}
+		return socket.send(longBytes, 0, Long.BYTES, flags);
+	}
+
+	/**
+	 * Serializes a protobuf message into the reusable payload array and sends it as a single frame
+	 *
+	 * @param socket zeromq socket to send on
+	 * @param message protobuf message
+	 * @param flags zeromq send flags
+	 * @return whether zeromq accepted the frame
+	 * @throws IOException
+	 */
+	public boolean sendMessage(ZMQ.Socket socket, Message message, int flags) throws IOException {
+		int size = message.getSerializedSize();
+		if (size > payloadBytes.length) {
+			payloadBytes = new byte[Math.max(size, payloadBytes.length * 2)];
+		}
+
+		CodedOutputStream output = CodedOutputStream.newInstance(payloadBytes, 0, size);
+		message.writeTo(output);
+		output.checkNoSpaceLeft();
+
+		return socket.send(payloadBytes, 0, size, flags);
+	}
+
+	/**
+	 * Sends the reply to a request that could not be served, e.g. with an unknown op-code or malformed
+	 * arguments, for the client to fail the call
+	 *
+	 * @param socket zeromq socket to send on
+	 * @return whether zeromq accepted the reply
+	 */
+	public static boolean sendError(ZMQ.Socket socket) {
+		return socket.send(EMPTY_FRAME, ZMQ.SNDMORE) && socket.send(ERROR_FRAME, 0);
+	}
+
+	/**
+	 * Receives the response frame of a reply, discarding any frames after it so that the socket is left
+	 * aligned on the start of the next message
+	 *
+	 * @param socket zeromq socket in the middle of receiving a reply, or at its start
+	 * @param first whether the response frame is the first frame of the reply, rather than the next one
+	 * @return the response frame, or null if the reply is an error reply or has no response frame
+	 */
+	public static byte[] receiveResponseFrame(ZMQ.Socket socket, boolean first) {
+		byte[] frame = first ? socket.recv(0) : receiveNextFrame(socket);
+		if (frame == null || !socket.hasReceiveMore())
+			return frame;
+
+		// an error reply, or a malformed one
+		while (socket.hasReceiveMore()) {
+			socket.recv(0);
+		}
+		return null;
+	}
+
+	/**
+	 * Receives the next frame of the current multipart message, if any
+	 * 
+	 * @param socket zeromq socket in the middle of receiving a multipart message
+	 * @return the next frame, or null if the message had no more frames
+	 */
+	public static byte[] receiveNextFrame(ZMQ.Socket socket) {
+		return socket.hasReceiveMore() ? socket.recv(0) : null;
+	}
+	
+	/**
+	 * Receives the next frame of the current multipart message, discarding any frames after it so that
+	 * the socket is left aligned on the start of the next message
+	 * 
+	 * @param socket zeromq socket in the middle of receiving a multipart message
+	 * @return the next frame, or null if the message had no more frames
+	 */
+	public static byte[] receiveLastFrame(ZMQ.Socket socket) {
+		if (!socket.hasReceiveMore())
+			return null;
+		
+		byte[] frame = socket.recv(0);
+		while (socket.hasReceiveMore()) {
+			socket.recv(0);
+		}
+		return frame;
+	}
+}
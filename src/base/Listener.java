@@ -1,14 +1,16 @@
 package base;
 
-import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.zeromq.ZMQ;
 
 import rpc.RpcServer;
+import utils.LongHashTable;
 import utils.Utils;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
@@ -25,17 +27,37 @@ import com.google.protobuf.Descriptors.ServiceDescriptor;
  */
 public abstract class Listener {
 	/**
-	 * Map of the service method signatures and their corresponding compact binary op-code
+	 * Table of the service method signatures and their corresponding compact binary op-code; immutable and
+	 * replaced wholesale on registration so the receive path looks up primitive op-codes without locking
 	 */
-	protected Map<Long, RequestMessage> rpcMethodMap = new HashMap<Long, RequestMessage>();
+	protected volatile LongHashTable<RequestMessage> rpcMethodMap = LongHashTable.empty();
+	
+	/**
+	 * Maximum number of messages received per poll before the queued replies get drained again
+	 */
+	protected static final int RECEIVE_BATCH = 64;
 	
 	protected ZMQ.Context zmqContext;
+	
+	/**
+	 * Listening socket, owned by the listener thread; other threads reach it through the outbox only
+	 */
 	protected ZMQ.Socket zmqSocket;
 	
 	/**
-	 * Synchronization object used to ensure that zeromq socket object's recv() and send() methods are synchronized
+	 * Reusable frame buffers for writing replies on the listening socket, confined to the listener thread
 	 */
-	protected Boolean socketBlock = new Boolean(false);
+	protected FrameBuffer frameBuffer = new FrameBuffer();
+	
+	/**
+	 * Replies queued by service callbacks on any thread, sent on the listening socket by the listener thread
+	 */
+	protected Outbox outbox = new Outbox();
+	
+	/**
+	 * Executor the decoded requests are handed off to for calling the service implementation
+	 */
+	protected volatile Executor dispatchExecutor = Dispatchers.inline();
 	
 	/**
 	 * hook for children class to initialize the zeromq socket to a specific type (e.g., RPC, pub-sub, push-pull)
@@ -62,18 +84,29 @@ public abstract class Listener {
 	 * and registers the method signature and its binary operation code in the listener map 
 	 * 
 	 * @param service protobuf service implementation
+	 * @throws IllegalArgumentException if a method's op-code is already taken by a registered method
 	 */
-	public void registerService(Service service) {
+	public synchronized void registerService(Service service) {
+		Map<Long, RequestMessage> serviceMethods = new HashMap<Long, RequestMessage>();
 		
 		for (MethodDescriptor methodDescriptor : service.getDescriptorForType().getMethods()) {
 			Message request = service.getRequestPrototype(methodDescriptor);
 			Message response = service.getResponsePrototype(methodDescriptor);
 			RequestMessage methodMessage = new RequestMessage(service, request, response, methodDescriptor);
 			
-			// put the the method's binary operation code in map
-			Long opCode = Utils.hashString(methodDescriptor.getFullName());
-			rpcMethodMap.put(opCode, methodMessage);
+			// refuse to silently shadow another method that hashes to the same binary operation code
+			long opCode = OpCodeTable.opCode(methodDescriptor);
+			RequestMessage registered = rpcMethodMap.containsKey(opCode) ? 
+					rpcMethodMap.get(opCode) : serviceMethods.get(opCode);
+			if (registered != null) {
+				throw new IllegalArgumentException("Op-code " + Long.toHexString(opCode) + " of " 
+						+ methodDescriptor.getFullName() + " is already registered to " + registered.method.getFullName());
+			}
+			serviceMethods.put(opCode, methodMessage);
 		}
+		
+		// publish the methods' binary operation codes only once the whole service is known to be collision-free
+		rpcMethodMap = rpcMethodMap.plus(serviceMethods);
 	}
 	
 	/**
@@ -84,40 +117,145 @@ public abstract class Listener {
 	protected abstract RpcCallback<Message> callback();
 	
 	/**
-	 * Starts the listener thread, which queues off incoming requests via zeromq socket, calls the method
-	 * from registered service and calls the appropriate callback method with the returned value
+	 * Sets the executor calling the service implementation for each request (see Dispatchers); services and
+	 * their callbacks may then run on other threads, as callbacks reply through the thread-safe outbox
+	 * 
+	 * @param dispatchExecutor executor the decoded requests are handed off to
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+	
+	/**
+	 * Starts the listener thread, which queues off incoming requests via zeromq socket, hands the method
+	 * from registered service off to the dispatch executor and sends the replies queued by the callbacks;
+	 * the listener thread is the only thread touching the socket
 	 * 
 	 */
 	public void start() {
+		ZMQ.Poller poller = new ZMQ.Poller(2);
+		int socketIndex = poller.register(zmqSocket, ZMQ.Poller.POLLIN);
+		int outboxIndex = outbox.register(poller);
+		
+		// a REP socket has to reply before it can receive again, other sockets are read in batches
+		int receiveBatch = zmqSocket.getType() == ZMQ.REP ? 1 : RECEIVE_BATCH;
+		
 		while (!Thread.currentThread().isInterrupted()) {
+			poller.poll();
 			
-			// get the top request from the zeromq listening socket
-			byte[] requestArr;
-			synchronized (socketBlock) {
-				requestArr = zmqSocket.recv(0);
+			if (poller.pollin(outboxIndex)) {
+				outbox.drain(zmqSocket, frameBuffer);
 			}
 			
-			// parse corresponding method/service descriptor from its hashed value
-			Long opCode = ByteBuffer.wrap(requestArr).getLong();
-			RequestMessage methodMessage = rpcMethodMap.get(opCode);
-			
-			if (methodMessage == null)	// invalid message as the service descriptor cannot be found, skip to next message
+			if (!poller.pollin(socketIndex))
 				continue;
 			
-			MethodDescriptor method = methodMessage.method;
-			Message request = methodMessage.request;
-			Service service = methodMessage.service;
-						
-			try {
-				// parse the request parameters and call the registered service implementation with the method and parameters
-				request = request.getParserForType().parseFrom(requestArr, Long.BYTES, requestArr.length - Long.BYTES);
-				service.callMethod(method, null, request, callback());	// pass the specific callback hook
-			} catch (InvalidProtocolBufferException e) {
-				e.printStackTrace();
+			for (int i = 0; i < receiveBatch; i++) {
+				// get the top request from the zeromq listening socket, the op-code frame followed by the arguments frame
+				byte[] opCodeFrame = zmqSocket.recv(ZMQ.DONTWAIT);
+				if (opCodeFrame == null)	// no more requests queued on the socket
+					break;
+				
+				byte[] requestFrame = FrameBuffer.receiveLastFrame(zmqSocket);
+				boolean dispatched = requestFrame != null	// malformed message without an arguments frame otherwise
+						&& dispatch(opCodeFrame, requestFrame, callback());	// pass the specific callback hook
+				
+				// a REP socket has to answer every request before receiving the next one, so unknown or malformed
+				// requests get an error reply instead of being skipped
+				if (!dispatched && zmqSocket.getType() == ZMQ.REP) {
+					FrameBuffer.sendError(zmqSocket);
+				}
 			}
 		}
 	}
 	
+	/**
+	 * Decodes a request from its op-code and arguments frames and hands the call of the registered service 
+	 * implementation with the method and parameters off to the dispatch executor
+	 * 
+	 * @param opCodeFrame frame holding the method's binary operation code
+	 * @param requestFrame frame holding the serialized method arguments
+	 * @param done callback handler passed to the service
+	 * @return whether the service call was dispatched; false if the op-code is unknown or the arguments cannot be parsed
+	 */
+	protected boolean dispatch(byte[] opCodeFrame, byte[] requestFrame, RpcCallback<Message> done) {
+		return dispatch(opCodeFrame, requestFrame, done, dispatchExecutor);
+	}
+	
+	/**
+	 * Decodes a request from its op-code and arguments frames and hands the call of the registered service 
+	 * implementation with the method and parameters off to the given executor
+	 * 
+	 * @param opCodeFrame frame holding the method's binary operation code
+	 * @param requestFrame frame holding the serialized method arguments
+	 * @param done callback handler passed to the service
+	 * @param executor executor calling the service
+	 * @return whether the service call was dispatched; false if the op-code is unknown or the arguments cannot be parsed
+	 */
+	protected boolean dispatch(byte[] opCodeFrame, byte[] requestFrame, RpcCallback<Message> done, Executor executor) {
+		if (opCodeFrame.length < Long.BYTES)	// malformed op-code
+			return false;
+		
+		return dispatch(Utils.bytesToLong(opCodeFrame), CodedInputStream.newInstance(requestFrame), done, executor);
+	}
+	
+	/**
+	 * Decodes a request from its op-code and the serialized arguments read from a stream, e.g. one entry of
+	 * a batch frame limited to its length, and hands the call of the registered service implementation with
+	 * the method and parameters off to the given executor
+	 * 
+	 * @param opCode the method's binary operation code
+	 * @param input stream positioned on the serialized method arguments, read until its end or limit
+	 * @param done callback handler passed to the service
+	 * @param executor executor calling the service
+	 * @return whether the service call was dispatched; false if the op-code is unknown or the arguments cannot be parsed
+	 */
+	protected boolean dispatch(long opCode, CodedInputStream input, RpcCallback<Message> done, Executor executor) {
+		Runnable call = prepare(opCode, input, done);
+		if (call == null)
+			return false;
+		
+		executor.execute(call);
+		return true;
+	}
+	
+	/**
+	 * Decodes a request from its op-code and the serialized arguments read from a stream into the call of the
+	 * registered service implementation, for the caller to run or queue as it sees fit
+	 * 
+	 * @param opCode the method's binary operation code
+	 * @param input stream of the serialized method arguments
+	 * @param done callback handler passed to the service
+	 * @return the service call, or null if the op-code is unknown or the arguments cannot be parsed
+	 */
+	protected Runnable prepare(long opCode, CodedInputStream input, RpcCallback<Message> done) {
+		// parse corresponding method/service descriptor from its hashed value
+		RequestMessage methodMessage = rpcMethodMap.get(opCode);
+		
+		if (methodMessage == null)	// invalid message as the service descriptor cannot be found
+			return null;
+		
+		MethodDescriptor method = methodMessage.method;
+		Service service = methodMessage.service;
+		Message request;
+					
+		try {
+			// parse the request parameters on the receiving thread
+			request = methodMessage.request.getParserForType().parseFrom(input);
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		// call the registered service implementation with the method and parameters
+		return new Runnable() {
+			@Override
+			public void run() {
+				service.callMethod(method, null, request, done);
+			}
+		};
+	}
+	
 	/**
 	 * Non-blocking start method that kicks off the listener thread
 	 */
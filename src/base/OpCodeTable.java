@@ -0,0 +1,61 @@
+package base;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import utils.Utils;
+
+import com.google.protobuf.Descriptors.MethodDescriptor;
+import com.google.protobuf.Descriptors.ServiceDescriptor;
+
+/**
+ * OpCodeTable caches the 64-bit binary operation code of every service method, keyed by the identity of its
+ * method descriptor; the op-codes of a whole service are hashed the first time any of its methods is seen, so
+ * that channels and listeners never hash method names on the message path
+ *
+ * @author paulcao
+ */
+public class OpCodeTable {
+
+	/**
+	 * Copy-on-write snapshot of method descriptors and their op-codes; read without locking
+	 */
+	private static volatile Map<MethodDescriptor, Long> opCodes = new IdentityHashMap<MethodDescriptor, Long>();
+
+	private OpCodeTable() {
+	}
+
+	/**
+	 * Looks up the op-code of a service method, hashing its whole service on first sight
+	 *
+	 * @param method protobuf method descriptor
+	 * @return the method's 64-bit op-code
+	 */
+	public static long opCode(MethodDescriptor method) {
+		Long opCode = opCodes.get(method);
+		if (opCode == null) {
+			opCode = register(method.getService()).get(method);
+		}
+		return opCode;
+	}
+
+	/**
+	 * Hashes every method of a service into a new snapshot of the table
+	 *
+	 * @param service protobuf service descriptor
+	 * @return the snapshot containing the service's methods
+	 */
+	private static synchronized Map<MethodDescriptor, Long> register(ServiceDescriptor service) {
+		Map<MethodDescriptor, Long> current = opCodes;
+		if (current.containsKey(service.getMethods().get(0))) {
+			return current;
+		}
+
+		Map<MethodDescriptor, Long> updated = new IdentityHashMap<MethodDescriptor, Long>(current);
+		for (MethodDescriptor method : service.getMethods()) {
+			updated.put(method, Utils.hashString(method.getFullName()));
+		}
+		opCodes = updated;
+		return updated;
+	}
+}
@@ -0,0 +1,81 @@
+package base;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Outbox is the lock-free multi-producer queue of outbound messages for a zeromq socket that is owned by a
+ * single I/O thread; any thread may offer messages, and the owner drains them onto the socket in batches
+ * between polls. Producers wake the owner through a signal that is registered in the owner's zeromq poller
+ * next to the socket itself
+ *
+ * @author paulcao
+ */
+public class Outbox {
+
+	/**
+	 * An outbound message, written frame by frame on the owner thread
+	 */
+	public interface Frames {
+		/**
+		 * @param socket the socket owned by the draining thread
+		 * @param frameBuffer the owner thread's reusable frame buffers
+		 * @throws IOException
+		 */
+		void send(ZMQ.Socket socket, FrameBuffer frameBuffer) throws IOException;
+	}
+
+	private final Queue<Frames> queue = new ConcurrentLinkedQueue<Frames>();
+
+	private final Signal signal = new Signal();
+
+	/**
+	 * Queues a message for the owner thread to send; never blocks on the socket
+	 *
+	 * @param frames the outbound message
+	 */
+	public void offer(Frames frames) {
+		queue.offer(frames);
+		signal.raise();
+	}
+
+	/**
+	 * Registers the wake-up signal in the owner thread's poller
+	 *
+	 * @param poller zeromq poller of the owner thread
+	 * @return the poll item index to check with pollin
+	 */
+	public int register(ZMQ.Poller poller) {
+		return signal.register(poller);
+	}
+
+	/**
+	 * Sends every queued message on the socket; called by the owner thread only
+	 *
+	 * @param socket the socket owned by the calling thread
+	 * @param frameBuffer the calling thread's reusable frame buffers
+	 * @return the number of messages sent
+	 */
+	public int drain(ZMQ.Socket socket, FrameBuffer frameBuffer) {
+		signal.clear();
+
+		int sent = 0;
+		Frames frames;
+		while ((frames = queue.poll()) != null) {
+			try {
+				frames.send(socket, frameBuffer);
+				sent++;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return sent;
+	}
+
+	public boolean isEmpty() {
+		return queue.isEmpty();
+	}
+}
@@ -0,0 +1,75 @@
+package base;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.zeromq.ZMQ;
+
+/**
+ * Signal wakes up a socket-owning I/O thread blocked in its zeromq poller when another thread has queued
+ * work for it; it is a pipe registered in the poller next to the sockets, written to at most once between
+ * two clears no matter how many threads raise it
+ *
+ * @author paulcao
+ */
+public class Signal {
+
+	private final Pipe pipe;
+
+	/**
+	 * Whether a wake-up byte is pending, so that a burst of producers signals the owner only once
+	 */
+	private final AtomicBoolean raised = new AtomicBoolean();
+
+	private final ByteBuffer clearBuffer = ByteBuffer.allocate(64);
+
+	public Signal() {
+		try {
+			pipe = Pipe.open();
+			pipe.source().configureBlocking(false);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open wake-up pipe", e);
+		}
+	}
+
+	/**
+	 * Wakes up the owner thread; called by any thread after queuing work
+	 */
+	public void raise() {
+		if (raised.compareAndSet(false, true)) {
+			try {
+				pipe.sink().write(ByteBuffer.wrap(new byte[1]));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Registers the wake-up pipe in the owner thread's poller
+	 *
+	 * @param poller zeromq poller of the owner thread
+	 * @return the poll item index to check with pollin
+	 */
+	public int register(ZMQ.Poller poller) {
+		return poller.register(pipe.source(), ZMQ.Poller.POLLIN);
+	}
+
+	/**
+	 * Consumes the pending wake-up; called by the owner thread before it takes the queued work, so that
+	 * work queued after this point raises the signal again rather than being stranded
+	 */
+	public void clear() {
+		try {
+			while (pipe.source().read(clearBuffer) > 0) {
+				clearBuffer.clear();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		clearBuffer.clear();
+		raised.set(false);
+	}
+}
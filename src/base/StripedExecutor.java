@@ -0,0 +1,71 @@
+package base;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * StripedExecutor runs tasks on a fixed number of single-threaded stripes, picking the stripe from a key, so
+ * that tasks of the same key run one after the other in submission order while tasks of different keys run
+ * in parallel
+ * 
+ * @author paulcao
+ */
+public class StripedExecutor implements Executor {
+
+	private final ExecutorService[] stripes;
+	
+	/**
+	 * Stripe of the next task submitted without a key
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param stripes number of stripes, i.e. of threads
+	 */
+	public StripedExecutor(int stripes) {
+		if (stripes < 1) {
+			throw new IllegalArgumentException("stripes must be positive: " + stripes);
+		}
+		
+		this.stripes = new ExecutorService[stripes];
+		for (int i = 0; i < stripes; i++) {
+			this.stripes[i] = Executors.newSingleThreadExecutor();
+		}
+	}
+	
+	/**
+	 * Runs a task on the stripe of its key
+	 * 
+	 * @param key the key, tasks of equal keys running in submission order; null keys share a stripe
+	 * @param command the task
+	 */
+	public void execute(Object key, Runnable command) {
+		int hash = key == null ? 0 : key.hashCode();
+		// spread the hash so that keys differing in the high bits only do not share a stripe
+		hash ^= hash >>> 16;
+		stripes[Math.floorMod(hash, stripes.length)].execute(command);
+	}
+	
+	/**
+	 * Runs a task without ordering constraints, on the stripes in turn
+	 * 
+	 * @param command the task
+	 */
+	@Override
+	public void execute(Runnable command) {
+		stripes[Math.floorMod(next.getAndIncrement(), stripes.length)].execute(command);
+	}
+	
+	/**
+	 * Stops the stripes once the tasks submitted so far have run
+	 */
+	public void shutdown() {
+		for (ExecutorService stripe : stripes) {
+			stripe.shutdown();
+		}
+	}
+}
@@ -15,6 +15,7 @@ import messaging.ExampleProto.MessageString;
 import rpc.RpcChannel;
 import rpc.RpcServer;
 import taskqueue.Master;
+import taskqueue.TaskGroup;
 
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
@@ -76,10 +77,13 @@ public class WordCountMaster {
 		Thread.sleep(500);
 		
 		// Set up the WordCountMaster service scaffolding
-		WordCountService wordCountService =  WordCountService.newStub(new Master("127.0.0.1", 5555, 
-				"127.0.0.1", 5556, 1));
+		Master master = new Master("127.0.0.1", 5555, "127.0.0.1", 5556, 1);
+		WordCountService wordCountService =  WordCountService.newStub(master);
 		AtomicInteger wordCountTotalSum = new AtomicInteger(0);
 		
+		// Track the submitted tasks to know when all of them are done
+		TaskGroup wordCountTasks = master.newGroup();
+		
 		// Submit 100 Strings for worker nodes to count
 		for (int i=0;i<100;i++) {
 			// Generate a sequence of random words
@@ -87,17 +91,24 @@ public class WordCountMaster {
 			System.out.println("Sending document: " + document);
 			
 			// Send word count task evenly distributed to worker nodes
-			wordCountService.wordCount(null, document, new RpcCallback<MessageCount>() {
+			wordCountService.wordCount(null, document, wordCountTasks.track(new RpcCallback<MessageCount>() {
 				@Override
 				public void run(MessageCount msg) {
+					if (msg == null)	// the task expired without a result
+						return;
+					
 					// Print the current grand word count sum of all documents/strings submitted thus far
 					System.out.println("Current count: " + 
 						wordCountTotalSum.addAndGet(msg.getCount()));
 				}			
-			});
+			}));
 		}
 		
-		// Block the current thread as tasks submission and collections are asynchronous
-		while (true) {}
+		// Wait for all the tasks to complete as tasks submission and collections are asynchronous
+		wordCountTasks.close();
+		wordCountTasks.awaitAll();
+		
+		System.out.println("Total count: " + wordCountTotalSum.get() + " (" + wordCountTasks.getFailed() + " tasks failed)");
+		System.exit(0);
 	}
 }
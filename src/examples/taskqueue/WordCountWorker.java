@@ -5,6 +5,8 @@ import messaging.ExampleProto.WordCountService;
 import messaging.ExampleProto.MessageString;
 import taskqueue.Worker;
 
+import java.util.concurrent.TimeUnit;
+
 import com.google.protobuf.RpcCallback;
 import com.google.protobuf.RpcController;
 
@@ -49,6 +51,18 @@ public class WordCountWorker {
 		
 		// start the worker node to listen for assigned tasks from the master node
 		worker.startThread();
+		
+		// drain the worker node on shutdown, so that the tasks it was sent run elsewhere rather than being lost
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					worker.drain(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}));
 	}
 	
 }
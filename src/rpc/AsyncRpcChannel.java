@@ -0,0 +1,353 @@
+package rpc;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.zeromq.ZMQ;
+
+import utils.TimingWheel;
+import utils.Utils;
+
+import base.Channel;
+import base.FrameBuffer;
+import base.OpCodeTable;
+import base.Outbox;
+import base.ResponseMessage;
+
+import com.google.protobuf.BlockingRpcChannel;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.ServiceException;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * AsyncRpcChannel is the pipelined client-side interface to make requests to the RpcServer; it keeps up to a
+ * window of requests in flight over a DEALER socket instead of waiting for each response in lockstep, and
+ * completes the callbacks from a dedicated receive thread that owns the socket.
+ *
+ * Every request carries a correlation id as the first frame of its routing envelope, which REP sockets on
+ * the server side hand back untouched with the reply, so the server needs no knowledge of pipelining.
+ *
+ * Besides the callback-based stubs, calls can be made through futures or generated blocking stubs; callers
+ * only ever park on a semaphore or a future and never hold a monitor or sit in a socket call while waiting,
+ * so large numbers of callers (e.g., virtual threads) can share one channel.
+ *
+ * A call fails, running its callback with null as per the protobuf rpc conventions, if the server could not
+ * serve it (e.g., unknown method), if its response is malformed or if it does not arrive before the call 
+ * timeout, which frees up its slot of the window
+ *
+ * @author paulcao
+ *
+ */
+public class AsyncRpcChannel extends Channel implements BlockingRpcChannel {
+
+	/**
+	 * Empty delimiter frame separating the routing envelope from the request, as expected by REP sockets
+	 */
+	private static final byte[] DELIMITER = new byte[0];
+
+	/**
+	 * Current correlation id, used to match responses with the callbacks of their requests
+	 */
+	private final AtomicLong correlationId = new AtomicLong();
+
+	/**
+	 * Default time a call may wait for its response before it fails
+	 */
+	public static final long DEFAULT_CALL_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * Resolution and size per level of the timing wheel tracking the deadlines of the calls
+	 */
+	private static final long TIMER_TICK_MILLIS = 10;
+	private static final int TIMER_WHEEL_SIZE = 4096;
+
+	/**
+	 * A request awaiting its response
+	 */
+	private static class PendingCall extends ResponseMessage {
+		final RpcController controller;
+
+		PendingCall(Message response, RpcCallback<Message> callback, RpcController controller) {
+			super(response, callback);
+			this.controller = controller;
+		}
+	}
+
+	/**
+	 * Requests awaiting a response, by correlation id
+	 */
+	private final Map<Long, PendingCall> pendingCalls = new ConcurrentHashMap<Long, PendingCall>();
+
+	/**
+	 * How long a call may wait for its response before it fails, or 0 to wait however long it takes
+	 */
+	private volatile long callTimeoutMillis = DEFAULT_CALL_TIMEOUT_MILLIS;
+
+	/**
+	 * Correlation ids of the calls sent with a deadline, by their deadline; confined to the receive thread
+	 */
+	private TimingWheel<Long> deadlines;
+
+	/**
+	 * Permits for the requests allowed in flight; callers block once the window is full
+	 */
+	private final Semaphore window;
+
+	/**
+	 * Requests queued by caller threads for the receive thread to send
+	 */
+	private final Outbox outbox = new Outbox();
+
+	/**
+	 * Constructor
+	 *
+	 * @param host rpc server host
+	 * @param port rpc server port
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param window maximum number of requests in flight
+	 */
+	public AsyncRpcChannel(String host, int port, int io_threads, int window) {
+		super(host, port, io_threads);
+
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be positive: " + window);
+		}
+		this.window = new Semaphore(window);
+
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				receive();
+			}
+		};
+
+		Thread receiveThread = new Thread(runnable, "async-rpc-channel");
+		receiveThread.setDaemon(true);
+		receiveThread.start();
+	}
+
+	/**
+	 * Sets how long a call may wait for its response before it fails and frees up its slot of the window, 
+	 * e.g. when the server dropped a request it could not decode; applies to calls made from then on
+	 *
+	 * @param callTimeoutMillis the call timeout, or 0 to wait however long it takes
+	 */
+	public void setCallTimeout(long callTimeoutMillis) {
+		if (callTimeoutMillis < 0) {
+			throw new IllegalArgumentException("call timeout must not be negative: " + callTimeoutMillis);
+		}
+		this.callTimeoutMillis = callTimeoutMillis;
+	}
+
+	@Override
+	protected void initializeSocket(String address) {
+		zmqSocket = zmqContext.socket(ZMQ.DEALER);
+		zmqSocket.connect(address);
+	}
+
+	/**
+	 * Queues the request for the receive thread to send and returns without waiting for the response; blocks
+	 * only while the window of requests in flight is full
+	 *
+	 * @param methodDescriptor service and method name description
+	 * @param controller protobuf controller object, failed along with the call, if any
+	 * @param request protobuf request arguments
+	 * @param response protobuf response object
+	 * @param done protobuf async callback handler, run on the receive thread, with null if the call failed
+	 */
+	@Override
+	public void callMethod(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, Message response, RpcCallback<Message> done) {
+
+		long opCode = OpCodeTable.opCode(methodDescriptor);
+		window.acquireUninterruptibly();
+
+		long currentId = correlationId.incrementAndGet();
+		long timeout = callTimeoutMillis;
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+		pendingCalls.put(currentId, new PendingCall(response, done, controller));
+
+		outbox.offer(new Outbox.Frames() {
+			@Override
+			public void send(ZMQ.Socket socket, FrameBuffer frameBuffer) throws IOException {
+				// run on the receive thread, which owns the deadlines
+				if (deadline > 0) {
+					deadlines.schedule(currentId, deadline);
+				}
+				frameBuffer.sendLong(socket, currentId, ZMQ.SNDMORE);
+				socket.send(DELIMITER, ZMQ.SNDMORE);
+				frameBuffer.sendLong(socket, opCode, ZMQ.SNDMORE);
+				frameBuffer.sendMessage(socket, request, 0);
+			}
+		});
+	}
+
+	/**
+	 * Makes a request and returns a future of its response; the future fails with a ServiceException if the
+	 * response is malformed or does not arrive in time. It is completed on the receive thread, so dependent 
+	 * stages doing heavy work should use the async variants with their own executor
+	 *
+	 * @param methodDescriptor service and method name description
+	 * @param request protobuf request arguments
+	 * @param responsePrototype protobuf response prototype
+	 * @return a future of the decoded response
+	 */
+	public <T extends Message> CompletableFuture<T> callAsync(MethodDescriptor methodDescriptor, 
+			Message request, T responsePrototype) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		
+		callMethod(methodDescriptor, null, request, responsePrototype, new RpcCallback<Message>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void run(Message response) {
+				if (response != null) {
+					future.complete((T) response);
+				} else {
+					future.completeExceptionally(new ServiceException("Malformed response or no response in time"));
+				}
+			}
+		});
+		
+		return future;
+	}
+
+	/**
+	 * Blocking variant built on the future of the call, used by generated blocking stubs
+	 *
+	 * @param methodDescriptor service and method name description
+	 * @param controller protobuf controller object
+	 * @param request protobuf request arguments
+	 * @param responsePrototype protobuf response prototype
+	 * @return the decoded response
+	 * @throws ServiceException if the call failed or the calling thread is interrupted while waiting
+	 */
+	@Override
+	public Message callBlockingMethod(MethodDescriptor methodDescriptor, RpcController controller, 
+			Message request, Message responsePrototype) throws ServiceException {
+		try {
+			return callAsync(methodDescriptor, request, responsePrototype).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ServiceException(e);
+		} catch (ExecutionException e) {
+			throw new ServiceException(e.getCause());
+		}
+	}
+
+	@Override
+	protected void onSend(Message response, RpcCallback<Message> done) {
+		// do nothing as the receive thread completes the callbacks
+	}
+
+	/**
+	 * Receive thread loop; the only thread touching the socket, it sends the queued requests and decodes
+	 * the responses, passing each to the callback registered under its correlation id, and fails the calls 
+	 * whose deadline has passed
+	 */
+	private void receive() {
+		ZMQ.Poller poller = new ZMQ.Poller(2);
+		int socketIndex = poller.register(zmqSocket, ZMQ.Poller.POLLIN);
+		int outboxIndex = outbox.register(poller);
+
+		deadlines = new TimingWheel<Long>(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+		Consumer<Long> expire = new Consumer<Long>() {
+			@Override
+			public void accept(Long currentId) {
+				// a call already completed is no longer registered
+				fail(pendingCalls.remove(currentId));
+			}
+		};
+
+		while (!Thread.currentThread().isInterrupted()) {
+			// only wake up for timers while calls with a deadline are in flight
+			poller.poll(deadlines.isEmpty() ? -1 : TIMER_TICK_MILLIS);
+
+			if (poller.pollin(outboxIndex)) {
+				outbox.drain(zmqSocket, frameBuffer);
+			}
+
+			if (poller.pollin(socketIndex)) {
+				// a response contains the correlation id, the empty delimiter and the return value frames in that order
+				byte[] correlationIdFrame;
+				while ((correlationIdFrame = zmqSocket.recv(ZMQ.DONTWAIT)) != null) {
+					FrameBuffer.receiveNextFrame(zmqSocket);
+					byte[] responseFrame = FrameBuffer.receiveResponseFrame(zmqSocket, false);
+					if (correlationIdFrame.length < Long.BYTES) {
+						// no call to match the response with, skip to next response; the call times out
+						new IllegalArgumentException("Dropping response with a malformed correlation id").printStackTrace();
+						continue;
+					}
+					complete(Utils.bytesToLong(correlationIdFrame), responseFrame);
+				}
+			}
+
+			if (!deadlines.isEmpty()) {
+				deadlines.advance(System.currentTimeMillis(), expire);
+			}
+		}
+	}
+
+	/**
+	 * Decodes a response and passes it to the callback of its request, freeing up a slot of the window; a 
+	 * missing, error or malformed response fails the call
+	 *
+	 * @param currentId correlation id of the request
+	 * @param responseFrame serialized return value, or null if the response was an error reply or malformed
+	 */
+	private void complete(long currentId, byte[] responseFrame) {
+		PendingCall pendingCall = pendingCalls.remove(currentId);
+		if (pendingCall == null)	// unknown or timed out correlation id, skip to next response
+			return;
+
+		if (responseFrame == null) {
+			fail(pendingCall);
+			return;
+		}
+
+		Message response;
+		try {
+			// decode the binary response to a protobuf object
+			response = pendingCall.response.getParserForType().parseFrom(responseFrame);
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			fail(pendingCall);
+			return;
+		}
+
+		window.release();
+
+		// if callback handler exists, pass the parsed response to it
+		if (pendingCall.callback != null) {
+			pendingCall.callback.run(response);
+		}
+	}
+
+	/**
+	 * Fails a call, freeing up its slot of the window, failing its controller and running its callback with null
+	 *
+	 * @param pendingCall the call removed from the pending calls, or null if it was no longer pending
+	 */
+	private void fail(PendingCall pendingCall) {
+		if (pendingCall == null)
+			return;
+
+		window.release();
+
+		if (pendingCall.controller != null) {
+			pendingCall.controller.setFailed("Malformed response or no response in time");
+		}
+		if (pendingCall.callback != null) {
+			pendingCall.callback.run(null);
+		}
+	}
+}
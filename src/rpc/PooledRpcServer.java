@@ -0,0 +1,137 @@
+package rpc;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.zeromq.ZMQ;
+
+import base.Dispatchers;
+import base.FrameBuffer;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+
+/**
+ * PooledRpcServer is the multi-threaded server-side implementation of RPC; clients connect to a ROUTER
+ * frontend that fans their requests out over an in-process DEALER backend to a pool of handler threads,
+ * each with its own REP socket, and the replies are routed back to the originating client by its identity;
+ * registered services are called concurrently from the handler threads and have to be thread-safe, and the
+ * handler threads take the place of the dispatch executor
+ *
+ * @author paulcao
+ *
+ */
+public class PooledRpcServer extends RpcServer {
+
+	/**
+	 * Counter used to give every server in the JVM its own in-process backend address
+	 */
+	private static final AtomicInteger backendCounter = new AtomicInteger();
+
+	/**
+	 * Number of handler threads serving requests concurrently
+	 */
+	private final int handlerThreads;
+
+	/**
+	 * In-process DEALER socket the handler threads connect to
+	 */
+	protected ZMQ.Socket backendSocket;
+
+	private String backendAddress;
+
+	/**
+	 * Constructor
+	 *
+	 * @param host rpc hostname
+	 * @param port rpc port
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param handlerThreads number of threads calling the registered services
+	 */
+	public PooledRpcServer(String host, int port, int io_threads, int handlerThreads) {
+		super(host, port, io_threads);
+
+		if (handlerThreads < 1) {
+			throw new IllegalArgumentException("handlerThreads must be positive: " + handlerThreads);
+		}
+		this.handlerThreads = handlerThreads;
+	}
+
+	@Override
+	protected void initializeSocket(String address) {
+		zmqSocket = zmqContext.socket(ZMQ.ROUTER);
+		zmqSocket.bind(address);
+
+		// the backend has to be bound before any handler socket connects to it over inproc
+		backendAddress = "inproc://rpc-handlers-" + backendCounter.incrementAndGet();
+		backendSocket = zmqContext.socket(ZMQ.DEALER);
+		backendSocket.bind(backendAddress);
+	}
+
+	/**
+	 * Kicks off the handler threads and proxies requests and replies between the frontend and
+	 * the handlers on the current thread
+	 */
+	@Override
+	public void start() {
+		for (int i = 0; i < handlerThreads; i++) {
+			Runnable runnable = new Runnable() {
+				@Override
+				public void run() {
+					handle();
+				}
+			};
+
+			Thread handlerThread = new Thread(runnable, "rpc-handler-" + i);
+			handlerThread.setDaemon(true);
+			handlerThread.start();
+		}
+
+		// blocks until the zmq context is terminated
+		ZMQ.proxy(zmqSocket, backendSocket, null);
+	}
+
+	/**
+	 * Handler thread loop; receives requests from the backend on a REP socket owned by this thread, which strips
+	 * and restores the client's routing envelope, and calls the registered service implementation
+	 */
+	private void handle() {
+		ZMQ.Socket handlerSocket = zmqContext.socket(ZMQ.REP);
+		handlerSocket.connect(backendAddress);
+		RpcCallback<Message> reply = callback(handlerSocket, new FrameBuffer());
+
+		while (!Thread.currentThread().isInterrupted()) {
+			byte[] opCodeFrame = handlerSocket.recv(0);
+			byte[] requestFrame = FrameBuffer.receiveLastFrame(handlerSocket);
+
+			// a REP socket has to answer every request before receiving the next one, so unknown
+			// or malformed requests get an error reply instead of being skipped
+			if (requestFrame == null || !dispatch(opCodeFrame, requestFrame, reply, Dispatchers.inline())) {
+				FrameBuffer.sendError(handlerSocket);
+			}
+		}
+
+		handlerSocket.close();
+	}
+
+	/**
+	 * Callback that sends the service's return value on the handler thread's own socket; services
+	 * have to complete the callback before returning, as the handler socket is confined to its thread
+	 *
+	 * @param handlerSocket the handler thread's REP socket
+	 * @param handlerFrameBuffer the handler thread's frame buffers
+	 * @return a callback handler
+	 */
+	private RpcCallback<Message> callback(ZMQ.Socket handlerSocket, FrameBuffer handlerFrameBuffer) {
+		return new RpcCallback<Message>() {
+			@Override
+			public void run(Message returnVal) {
+				try {
+					handlerFrameBuffer.sendMessage(handlerSocket, returnVal, 0);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+}
@@ -1,10 +1,9 @@
 package rpc;
 
-import java.io.ByteArrayInputStream;
-
 import org.zeromq.ZMQ;
 
 import base.Channel;
+import base.FrameBuffer;
 
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
@@ -44,12 +43,19 @@ public class RpcChannel extends Channel {
 	 */
 	@Override
 	protected void onSend(Message response, RpcCallback<Message> done) {
-		// wait for zmq socket to get a response back
-		byte[] responseArr = zmqSocket.recv(0);	
+		// wait for zmq socket to get a response back, null if the server could not serve the request
+		byte[] responseArr = FrameBuffer.receiveResponseFrame(zmqSocket, true);
+		if (responseArr == null) {
+			// fail the call as per the protobuf rpc conventions
+			if (done != null) {
+				done.run(null);
+			}
+			return;
+		}
+		
 		try {
 			// decode the binary response to a protobuf object
-			ByteArrayInputStream input = new ByteArrayInputStream(responseArr);
-			response = response.getParserForType().parseFrom(input);
+			response = response.getParserForType().parseFrom(responseArr);
 		} catch (InvalidProtocolBufferException e) {
 			e.printStackTrace();
 		} catch (NullPointerException e) {
@@ -1,8 +1,12 @@
 package rpc;
 
+import java.io.IOException;
+
 import org.zeromq.ZMQ;
 
+import base.FrameBuffer;
 import base.Listener;
+import base.Outbox;
 
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
@@ -33,17 +37,19 @@ public class RpcServer extends Listener {
 	
 	/**
 	 * On callback after receiving and executing a RPC request from the server,
-	 * send the result right back to the originating RPC client
+	 * queue the result to be sent right back to the originating RPC client by the listener thread
 	 */
 	@Override
 	public RpcCallback<Message> callback() {
 		return new RpcCallback<Message>() {
 			@Override
 			public void run(Message returnVal) {
-				synchronized (socketBlock) {
-					// Send reply back to client and ensure that zmqSocket.send() is synchronized
-					zmqSocket.send(returnVal.toByteArray(), 0);
-				}
+				outbox.offer(new Outbox.Frames() {
+					@Override
+					public void send(ZMQ.Socket socket, FrameBuffer frameBuffer) throws IOException {
+						frameBuffer.sendMessage(socket, returnVal, 0);
+					}
+				});
 			}
 		};
 	}
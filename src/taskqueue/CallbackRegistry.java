@@ -0,0 +1,217 @@
+package taskqueue;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+import com.google.protobuf.Message;
+
+import base.ResponseMessage;
+
+/**
+ * CallbackRegistry keeps the callbacks of submitted tasks until their results arrive; it is a fixed-size,
+ * lock-free table indexed by the low bits of the request id, so lookups and removals take primitive keys and
+ * never allocate. The table bounds the number of pending tasks: registering blocks while it is full, which
+ * pushes back on the submitting threads, and tasks without a result are expired after a timeout to free 
+ * their slots
+ * 
+ * @author paulcao
+ *
+ */
+public class CallbackRegistry {
+	
+	private final AtomicReferenceArray<PendingTask> slots;
+	
+	private final int mask;
+	
+	/**
+	 * Free slots; a permit is taken on registration and given back on removal or expiry
+	 */
+	private final Semaphore freeSlots;
+	
+	/**
+	 * Current request id, used to keep an unique identifier for the task; ids start after the first id of
+	 * the Master's shard
+	 */
+	private final AtomicLong requestId;
+	
+	private final long expiryNanos;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity maximum number of pending tasks, rounded up to a power of two
+	 * @param expiryMillis how long a task may wait for its result before it is abandoned, or 0 to never expire
+	 */
+	public CallbackRegistry(int capacity, long expiryMillis) {
+		this(capacity, expiryMillis, 0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity maximum number of pending tasks, rounded up to a power of two
+	 * @param expiryMillis how long a task may wait for its result before it is abandoned, or 0 to never expire
+	 * @param shard shard of the Master the request ids are issued for
+	 */
+	public CallbackRegistry(int capacity, long expiryMillis, int shard) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("capacity out of range: " + capacity);
+		}
+		
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		
+		slots = new AtomicReferenceArray<PendingTask>(size);
+		mask = size - 1;
+		freeSlots = new Semaphore(size);
+		expiryNanos = TimeUnit.MILLISECONDS.toNanos(expiryMillis);
+		requestId = new AtomicLong(TaskProtocol.firstRequestId(shard));
+	}
+	
+	/**
+	 * Registers a task under a new request id, blocking while the registry is full
+	 * 
+	 * @param opCode op-code of the service method
+	 * @param request protobuf request object
+	 * @param responseMessage the response type and callback handler of the task
+	 * @return the pending task, holding the request id associated with the task
+	 */
+	public PendingTask register(long opCode, Message request, ResponseMessage responseMessage) {
+		return register(opCode, request, responseMessage, 0);
+	}
+	
+	/**
+	 * Registers a task held back before dispatch under a new request id, blocking while the registry is full
+	 * 
+	 * @param opCode op-code of the service method
+	 * @param request protobuf request object
+	 * @param responseMessage the response type and callback handler of the task
+	 * @param holdMillis how long the task is held back, which does not count towards its expiry
+	 * @return the pending task, holding the request id associated with the task
+	 */
+	public PendingTask register(long opCode, Message request, ResponseMessage responseMessage, long holdMillis) {
+		freeSlots.acquireUninterruptibly();
+		return claim(opCode, request, responseMessage, holdMillis);
+	}
+	
+	/**
+	 * Registers a task held back before dispatch under a new request id, waiting up to a timeout while the
+	 * registry is full
+	 * 
+	 * @param opCode op-code of the service method
+	 * @param request protobuf request object
+	 * @param responseMessage the response type and callback handler of the task
+	 * @param holdMillis how long the task is held back, which does not count towards its expiry
+	 * @param timeoutNanos how long to wait for a free slot, 0 not to wait at all
+	 * @return the pending task, or null if the registry stayed full
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public PendingTask tryRegister(long opCode, Message request, ResponseMessage responseMessage, 
+			long holdMillis, long timeoutNanos) throws InterruptedException {
+		boolean acquired = timeoutNanos > 0 ? freeSlots.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS) : freeSlots.tryAcquire();
+		return acquired ? claim(opCode, request, responseMessage, holdMillis) : null;
+	}
+	
+	/**
+	 * Takes the slot of a new request id for a task, the caller holding a permit
+	 */
+	private PendingTask claim(long opCode, Message request, ResponseMessage responseMessage, long holdMillis) {
+		long expiresAt = expiryNanos > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(holdMillis) + expiryNanos : Long.MAX_VALUE;
+		
+		// holding a permit guarantees a free slot, but the slot of the next id may still be held by an older,
+		// slower task; skip such ids rather than waiting for them
+		while (true) {
+			long currentId = requestId.incrementAndGet();
+			PendingTask task = new PendingTask(currentId, opCode, request, 
+					responseMessage.response, responseMessage.callback, expiresAt);
+			if (slots.compareAndSet(slot(currentId), null, task)) {
+				return task;
+			}
+		}
+	}
+	
+	/**
+	 * @param task a registered task
+	 * @return whether the task is still awaiting its result, i.e. it was neither completed nor expired
+	 */
+	public boolean isPending(PendingTask task) {
+		return slots.get(slot(task.requestId)) == task;
+	}
+	
+	/**
+	 * @param requestId the request id of a task
+	 * @return the task registered under the request id, or null if it is unknown, already completed or expired
+	 */
+	public PendingTask get(long requestId) {
+		PendingTask task = slots.get(slot(requestId));
+		return task != null && task.requestId == requestId ? task : null;
+	}
+	
+	/**
+	 * Removes the task registered under a request id, freeing its slot
+	 * 
+	 * @param requestId the request id of the task
+	 * @return the pending task, or null if the id is unknown, already completed or expired
+	 */
+	public PendingTask remove(long requestId) {
+		int slot = slot(requestId);
+		PendingTask task = slots.get(slot);
+		
+		if (task == null || task.requestId != requestId || !slots.compareAndSet(slot, task, null)) {
+			return null;
+		}
+		
+		freeSlots.release();
+		return task;
+	}
+	
+	/**
+	 * Removes the tasks whose results did not arrive in time; their callbacks are not called
+	 * 
+	 * @return the number of expired tasks
+	 */
+	public int expire() {
+		return expire(null);
+	}
+	
+	/**
+	 * Removes the tasks whose results did not arrive in time, passing them to a handler
+	 * 
+	 * @param expired handler of the expired tasks, or null
+	 * @return the number of expired tasks
+	 */
+	public int expire(Consumer<PendingTask> expired) {
+		if (expiryNanos == 0) {
+			return 0;
+		}
+		
+		long now = System.nanoTime();
+		int count = 0;
+		for (int slot = 0; slot <= mask; slot++) {
+			PendingTask task = slots.get(slot);
+			if (task != null && now - task.expiresAt >= 0 && remove(task.requestId) != null) {
+				count++;
+				if (expired != null) {
+					expired.accept(task);
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the number of pending tasks
+	 */
+	public int size() {
+		return mask + 1 - freeSlots.availablePermits();
+	}
+	
+	private int slot(long requestId) {
+		return (int) requestId & mask;
+	}
+}
@@ -0,0 +1,24 @@
+package taskqueue;
+
+import com.google.protobuf.Message;
+
+/**
+ * Combiner merges the results of an associative task method on the worker node, so that a partial aggregate 
+ * of many tasks is forwarded to the task sink instead of every result (e.g., summing word counts). The 
+ * default instance of the result type must be the identity of the merge, as the tasks whose results were
+ * merged into another task's aggregate complete with it
+ * 
+ * @author paulcao
+ *
+ */
+public interface Combiner {
+	
+	/**
+	 * Merges a task result into a partial aggregate; called on the worker node's listener thread
+	 * 
+	 * @param aggregate the partial aggregate of the results merged so far
+	 * @param result the task result to merge in
+	 * @return the new partial aggregate
+	 */
+	Message combine(Message aggregate, Message result);
+}
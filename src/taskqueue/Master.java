@@ -1,27 +1,55 @@
 package taskqueue;
 
 import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
 
+import utils.HashRing;
+import utils.LatencyHistogram;
+import utils.TimingWheel;
 import utils.Utils;
 
+import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Service;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 
 import base.Channel;
+import base.Dispatchers;
+import base.FrameBuffer;
+import base.OpCodeTable;
 import base.ResponseMessage;
+import base.Signal;
+import base.StripedExecutor;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * The Master implementation of the task queue, responsible for submitting tasks to its
  *  associated worker nodes and for maintaining a task sink that gathers the results
- *  of the work nodes as they complete the work
+ *  of the work nodes as they complete the work.
+ *  
+ *  Tasks are not pushed round-robin: every worker node announces how many tasks it is ready to take on 
+ *  and returns a credit with each result, and the Master only sends tasks to the worker nodes with credit
+ *  left, holding them back otherwise, so that slow nodes never build up a hidden queue of tasks
  *  
  * @author paulcao
  *
@@ -33,6 +61,147 @@ public class Master extends Channel {
 	 */
 	MasterTaskResultCollector taskSink;
 	
+	/**
+	 * Shard of the Master, encoded in the request ids of its tasks
+	 */
+	protected final int shard;
+	
+	/**
+	 * Default time a delivered task may go without a result before it is delivered again: none, tasks being
+	 * delivered only once unless a visibility timeout is set
+	 */
+	public static final long DEFAULT_VISIBILITY_TIMEOUT_MILLIS = 0;
+	
+	/**
+	 * Resolution and size per level of the timing wheels tracking the delivered and the delayed tasks
+	 */
+	private static final long TIMER_TICK_MILLIS = 10;
+	private static final int TIMER_WHEEL_SIZE = 4096;
+	
+	/**
+	 * Tasks queued by the submitting threads, sent to the worker nodes by the dispatch thread that owns the socket
+	 */
+	protected Queue<PendingTask> submissions = new ConcurrentLinkedQueue<PendingTask>();
+	
+	/**
+	 * Wakes up the dispatch thread when tasks are submitted
+	 */
+	protected Signal submitted = new Signal();
+	
+	/**
+	 * How long a delivered task may go without a result before it is delivered again, or 0 to deliver only once
+	 */
+	protected volatile long visibilityTimeoutMillis = DEFAULT_VISIBILITY_TIMEOUT_MILLIS;
+	
+	/**
+	 * Tasks of the batch being sent, requeued if the worker node cannot be reached; confined to the dispatch thread
+	 */
+	private final List<PendingTask> batchTasks = new ArrayList<PendingTask>();
+	
+	/**
+	 * Delivered tasks by the time they are due for redelivery; confined to the dispatch thread
+	 */
+	private TimingWheel<PendingTask> inFlight;
+	
+	/**
+	 * Submitted tasks held back until they are due; confined to the dispatch thread
+	 */
+	private TimingWheel<PendingTask> delayed;
+	
+	/**
+	 * What submitting through the stubs does while the maximum number of tasks are awaiting their results
+	 */
+	protected volatile SubmitPolicy submitPolicy = SubmitPolicy.BLOCK;
+	protected volatile long submitTimeoutMillis;
+	
+	/**
+	 * Write-ahead journal of the submitted tasks, or null
+	 */
+	protected volatile TaskJournal journal;
+	
+	/**
+	 * Default weights of the priority lanes, from {@link TaskController#HIGH} to {@link TaskController#LOW}
+	 */
+	public static final int[] DEFAULT_PRIORITY_WEIGHTS = { 16, 4, 1 };
+	
+	/**
+	 * Submitted and overdue tasks waiting for a worker node with credit, by priority; confined to the 
+	 * dispatch thread except for the weights
+	 */
+	private final PriorityLanes backlog = new PriorityLanes(DEFAULT_PRIORITY_WEIGHTS);
+	
+	/**
+	 * Credits announced by the worker nodes; confined to the dispatch thread
+	 */
+	private final WorkerCredits workers = new WorkerCredits();
+	
+	/**
+	 * The batch being sent; confined to the dispatch thread
+	 */
+	private final TaskBatchWriter batch = new TaskBatchWriter();
+	
+	/**
+	 * Default time between two requests to give back tasks sent to the same worker node
+	 */
+	public static final long DEFAULT_STEAL_INTERVAL_MILLIS = 100;
+	
+	/**
+	 * Minimum number of tasks a worker node must hold to be asked to give some back, one of them being run
+	 */
+	private static final int STEAL_MIN_HOLDING = 2;
+	
+	/**
+	 * Limit to the doubling of the interval between two requests to a worker node that has given back no task
+	 */
+	private static final int STEAL_MAX_BACKOFF_SHIFT = 6;
+	
+	/**
+	 * Time between two requests to give back tasks sent to the same worker node, or 0 not to steal tasks
+	 */
+	protected volatile long stealIntervalMillis = DEFAULT_STEAL_INTERVAL_MILLIS;
+	
+	/**
+	 * Extracts the affinity key of the tasks submitted without one, or null
+	 */
+	protected volatile Function<Message, String> affinityKey;
+	
+	/**
+	 * Minimum number of task latencies recorded before tasks are speculatively delivered again, and how often
+	 * the latency beyond which a task is a straggler is worked out anew
+	 */
+	private static final int SPECULATION_MIN_SAMPLES = 100;
+	private static final long STRAGGLER_REFRESH_MILLIS = 100;
+	
+	/**
+	 * Quantile of the running task latencies and the multiple of it beyond which a task still without a result
+	 * is a straggler, delivered again to another worker node; a factor of 0 not to speculate
+	 */
+	protected volatile double speculationQuantile = 0.95;
+	protected volatile double speculationFactor;
+	
+	/**
+	 * Delivered tasks by the time they become stragglers; confined to the dispatch thread
+	 */
+	private TimingWheel<PendingTask> running;
+	
+	/**
+	 * Stragglers waiting for another worker node with credit, sent as soon as no other task is waiting; 
+	 * confined to the dispatch thread
+	 */
+	private final ArrayDeque<PendingTask> stragglers = new ArrayDeque<PendingTask>();
+	
+	/**
+	 * Latency beyond which a task delivered now is a straggler, or -1 not to speculate; confined to the dispatch thread
+	 */
+	private long stragglerMillis = -1;
+	
+	/**
+	 * Limits of the batches of tasks sent to the worker nodes
+	 */
+	protected volatile int batchMaxTasks = TaskBatchWriter.DEFAULT_MAX_TASKS;
+	protected volatile int batchMaxBytes = TaskBatchWriter.DEFAULT_MAX_BYTES;
+	protected volatile long batchLingerMillis;
+	
 	/**
 	 * Constructor 
 	 * 
@@ -45,16 +214,87 @@ public class Master extends Channel {
 	public Master(final String pusherHost, final int pusherPort,
 			final String pullerHost, final int pullerPort, 
 			final int ioThreads) {
-		super(pusherHost, pusherPort, ioThreads);
+		this(pusherHost, pusherPort, pullerHost, pullerPort, ioThreads, 
+				MasterTaskResultCollector.DEFAULT_CAPACITY, MasterTaskResultCollector.DEFAULT_EXPIRY_MILLIS);
+	}
+	
+	/**
+	 * Constructor 
+	 * 
+	 * @param pusherHost master hostname
+	 * @param pusherPort master port
+	 * @param pullerHost task result collection channel hostname
+	 * @param pullerPort task result collection channel port
+	 * @param ioThreads number of threads dedicated to zmq sockets
+	 * @param maxPendingTasks maximum number of tasks awaiting their results, delayed tasks included, so to be
+	 * sized for as many delayed tasks as may be held back; submitting blocks, waits or rejects beyond it as set 
+	 * by the submit policy
+	 * @param taskExpiryMillis how long a task may wait for its result before it is abandoned and its callback
+	 * run with null, or 0 to never expire
+	 */
+	public Master(final String pusherHost, final int pusherPort,
+			final String pullerHost, final int pullerPort, 
+			final int ioThreads, final int maxPendingTasks, final long taskExpiryMillis) {
+		this(pusherHost, pusherPort, pullerHost, pullerPort, ioThreads, maxPendingTasks, taskExpiryMillis, 0);
+	}
+	
+	/**
+	 * Constructor of a Master shard; several shards, in one process or many, can share worker nodes, each
+	 * issuing request ids of its own range so that the worker nodes send the results to its task sink
+	 * 
+	 * @param pusherHost master hostname
+	 * @param pusherPort master port
+	 * @param pullerHost task result collection channel hostname
+	 * @param pullerPort task result collection channel port
+	 * @param ioThreads number of threads dedicated to zmq sockets
+	 * @param maxPendingTasks maximum number of tasks awaiting their results, delayed tasks included, so to be
+	 * sized for as many delayed tasks as may be held back; submitting blocks, waits or rejects beyond it as set 
+	 * by the submit policy
+	 * @param taskExpiryMillis how long a task may wait for its result before it is abandoned and its callback
+	 * run with null, or 0 to never expire
+	 * @param shard shard of the Master, from 0 to {@link TaskProtocol#MAX_SHARDS} excluded, unique among the
+	 * Master shards sharing worker nodes
+	 * @see Worker#addShard(int, String, int, String, int)
+	 */
+	public Master(final String pusherHost, final int pusherPort,
+			final String pullerHost, final int pullerPort, 
+			final int ioThreads, final int maxPendingTasks, final long taskExpiryMillis, final int shard) {
+		// check the shard before the socket is bound
+		super(pusherHost, pusherPort, checkShard(shard, ioThreads));
+		this.shard = shard;
 		
 		// initialize the task sink and kick off its listening thread
-		taskSink = new MasterTaskResultCollector(pullerHost, pullerPort, ioThreads);
+		taskSink = new MasterTaskResultCollector(pullerHost, pullerPort, ioThreads, maxPendingTasks, taskExpiryMillis, shard);
 		taskSink.startThread();
+		
+		// kick off the dispatch thread that sends the submitted tasks
+		Runnable runnable = new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		};
+		
+		Thread dispatchThread = new Thread(runnable, "master-dispatch");
+		dispatchThread.start();
+	}
+
+	/**
+	 * @param shard shard of the Master
+	 * @param ioThreads number of threads dedicated to zmq sockets
+	 * @return the number of threads dedicated to zmq sockets, once the shard is checked
+	 * @throws IllegalArgumentException if the shard is out of range
+	 */
+	private static int checkShard(int shard, int ioThreads) {
+		TaskProtocol.firstRequestId(shard);
+		return ioThreads;
 	}
 
 	@Override
 	protected void initializeSocket(String address) {
-		zmqSocket = zmqContext.socket(ZMQ.PUSH);
+		zmqSocket = zmqContext.socket(ZMQ.ROUTER);
+		// fail the messages to worker nodes no longer connected rather than drop them silently
+		zmqSocket.setRouterMandatory(true);
 		zmqSocket.bind(address);
 	}
 
@@ -64,25 +304,711 @@ public class Master extends Channel {
 	}
 	
 	/**
-	 * Overrides the default message serialization by including not only method operation 
-	 * code and method , but also a unique requestId for the task; used so that the task
-	 * sink can correlate the proper callbacks for the task results when the task is completed
+	 * Registers the task's callback with the task sink and queues the task for the dispatch thread; the task
+	 * message carries not only the method operation code and method arguments, but also a unique requestId 
+	 * frame, used so that the task sink can correlate the proper callbacks for the task results when the 
+	 * task is completed. Never blocks on the socket, so any number of threads can submit concurrently; while
+	 * the maximum number of tasks are awaiting their results, it blocks, waits up to a timeout or rejects the
+	 * task as set by the submit policy. A rejected task fails its controller, if any, and runs its callback 
+	 * with null, as per the protobuf rpc conventions
 	 * 
-	 * @param outputStream binary stream for message serialization
-	 * @param opBytes op-code of the service method
-	 * @param response protobuf response object
+	 * @param methodDescriptor service and method name description
+	 * @param controller protobuf controller object, a TaskController to set the task's options such as its priority
+	 * or delay; delayed tasks are held in a timing wheel by the dispatch thread, and count towards the maximum
+	 * number of tasks awaiting their results. A delayed task is rejected rather than blocked on while the 
+	 * maximum is reached, as it could block its producer until another delay elapses
 	 * @param request protobuf request object
+	 * @param response protobuf response object
 	 * @param done callback method
 	 */
 	@Override
-	protected void writeStream(ByteArrayOutputStream outputStream, byte[] opBytes, 
-			Message response, Message request, RpcCallback<Message> done) throws IOException {
+	public void callMethod(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, Message response, RpcCallback<Message> done) {
+		SubmitPolicy policy = submitPolicy;
+		long timeoutNanos = policy == SubmitPolicy.TIMEOUT ? TimeUnit.MILLISECONDS.toNanos(submitTimeoutMillis) : 0;
+		
+		if (!submit(methodDescriptor, controller, request, response, done, policy == SubmitPolicy.BLOCK, timeoutNanos)) {
+			if (controller != null) {
+				controller.setFailed("Too many tasks awaiting their results, task rejected");
+			}
+			if (done != null) {
+				done.run(null);
+			}
+		}
+	}
+	
+	/**
+	 * Submits a task and returns a future of its result; the future fails with a RejectedExecutionException if
+	 * the task is rejected or expires without a result. It is completed on the task sink's thread, so dependent
+	 * stages doing heavy work should use the async variants with their own executor
+	 * 
+	 * @param methodDescriptor service and method name description
+	 * @param controller protobuf controller object, a TaskController to set the task's options, or null
+	 * @param request protobuf request object
+	 * @param responsePrototype protobuf response prototype
+	 * @return a future of the task's result
+	 */
+	public <T extends Message> CompletableFuture<T> callAsync(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, T responsePrototype) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		callMethod(methodDescriptor, controller, request, responsePrototype, completing(future));
+		return future;
+	}
+	
+	/**
+	 * @return a new group tracking the completion of the tasks submitted through it
+	 */
+	public TaskGroup newGroup() {
+		return new TaskGroup(this);
+	}
+	
+	/**
+	 * @param future future of a task's result
+	 * @return a callback completing the future with the task's result, or failing it if the task was rejected
+	 * or expired
+	 */
+	static <T extends Message> RpcCallback<Message> completing(final CompletableFuture<T> future) {
+		return new RpcCallback<Message>() {
+			@SuppressWarnings("unchecked")
+			@Override
+			public void run(Message result) {
+				if (result != null) {
+					future.complete((T) result);
+				} else {
+					future.completeExceptionally(new RejectedExecutionException("Task rejected or expired without a result"));
+				}
+			}
+		};
+	}
+	
+	public int getShard() {
+		return shard;
+	}
+	
+	/**
+	 * @return the number of tasks awaiting their results, including those held back or not yet dispatched
+	 */
+	public int getPendingTaskCount() {
+		return taskSink.getPendingTaskCount();
+	}
+	
+	/**
+	 * Submits a task only if fewer than the maximum number of tasks are awaiting their results, never blocking
+	 * 
+	 * @param methodDescriptor service and method name description
+	 * @param controller protobuf controller object, a TaskController to set the task's options
+	 * @param request protobuf request object
+	 * @param response protobuf response object
+	 * @param done callback method, not run if the task is not submitted
+	 * @return whether the task was submitted
+	 */
+	public boolean trySubmit(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, Message response, RpcCallback<Message> done) {
+		return submit(methodDescriptor, controller, request, response, done, false, 0);
+	}
+	
+	/**
+	 * Sets what submitting a task through the stubs does while the maximum number of tasks are awaiting
+	 * their results; defaults to blocking
+	 * 
+	 * @param policy the submit policy
+	 * @param timeoutMillis how long to wait before rejecting the task with the timeout policy
+	 */
+	public void setSubmitPolicy(SubmitPolicy policy, long timeoutMillis) {
+		if (timeoutMillis < 0) {
+			throw new IllegalArgumentException("timeout must not be negative: " + timeoutMillis);
+		}
+		this.submitTimeoutMillis = timeoutMillis;
+		this.submitPolicy = policy;
+	}
+	
+	/**
+	 * Registers a task with the task sink, journals it and queues it for the dispatch thread
+	 * 
+	 * @param block whether to wait for a free slot however long it takes, delayed tasks never doing so
+	 * @param timeoutNanos how long to wait for a free slot otherwise, 0 not to wait at all
+	 * @return whether the task was submitted
+	 */
+	private boolean submit(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, Message response, RpcCallback<Message> done, boolean block, long timeoutNanos) {
+		long opCode = OpCodeTable.opCode(methodDescriptor);
+		TaskController options = controller instanceof TaskController ? (TaskController) controller : null;
+		
+		long now = System.currentTimeMillis();
+		long runAt = options != null ? options.runAt(now) : 0;
+		long holdMillis = Math.max(runAt - now, 0);
+		
 		ResponseMessage responseMessage = new ResponseMessage(response, done);
-		Long requestId = taskSink.registerCallback(responseMessage);
-		byte[] requestIdBytes = ByteBuffer.allocate(Long.BYTES).putLong(requestId).array();
+		PendingTask task;
+		if (block && holdMillis == 0) {
+			task = taskSink.registerTask(opCode, request, responseMessage, holdMillis);
+		} else {
+			try {
+				task = taskSink.tryRegisterTask(opCode, request, responseMessage, holdMillis, timeoutNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			if (task == null)
+				return false;
+		}
+		
+		String key = options != null ? options.getAffinityKey() : null;
+		Function<Message, String> affinityKey = this.affinityKey;
+		if (key == null && affinityKey != null) {
+			key = affinityKey.apply(request);
+		}
+		if (key != null) {
+			task.affinity = HashRing.hash(key);
+			task.affine = true;
+		}
+		
+		if (options != null) {
+			task.priority = options.getPriority();
+		}
+		if (holdMillis > 0) {
+			task.runAt = runAt;
+		}
+		
+		TaskJournal journal = this.journal;
+		if (journal != null) {
+			task.journalId = journal.submitted(opCode, request);
+		}
+		
+		submissions.offer(task);
+		submitted.raise();
+		return true;
+	}
+	
+	/**
+	 * Sets the executor the task callbacks run on once the task sink has decoded their results, so that slow
+	 * callbacks do not hold up the intake of results; defaults to running them on the task sink's thread
+	 * 
+	 * @param executor the callback executor
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		taskSink.setCallbackExecutor(executor);
+	}
+	
+	/**
+	 * Sets a striped executor the task callbacks run on once the task sink has decoded their results; the 
+	 * callbacks of tasks with equal keys run one after the other in the order their results arrived
+	 * 
+	 * @param executor the striped callback executor, e.g. {@link Dispatchers#striped(int)}
+	 * @param key extracts the key of a task from its request and its result, the latter null if the task failed
+	 */
+	public void setCallbackExecutor(StripedExecutor executor, BiFunction<Message, Message, Object> key) {
+		taskSink.setCallbackExecutor(executor, key);
+	}
+	
+	/**
+	 * Sets how long a delivered task may go without a result before it is delivered again, e.g. because its 
+	 * worker node died; tasks are then processed at least once, preferably by another worker node, and the
+	 * task sink drops the duplicate results. Applies to tasks delivered from then on; off by default, as tasks
+	 * running longer than the timeout are run again
+	 * 
+	 * @param visibilityTimeoutMillis the visibility timeout, or 0 to deliver tasks only once
+	 */
+	public void setVisibilityTimeout(long visibilityTimeoutMillis) {
+		if (visibilityTimeoutMillis < 0) {
+			throw new IllegalArgumentException("visibility timeout must not be negative: " + visibilityTimeoutMillis);
+		}
+		this.visibilityTimeoutMillis = visibilityTimeoutMillis;
+	}
+	
+	/**
+	 * Sets the weights of the priority lanes: while several lanes hold tasks, each sends out a share of the
+	 * tasks in proportion to its weight, so that urgent tasks overtake a bulk backlog without starving it
+	 * 
+	 * @param weights one positive weight per lane, from {@link TaskController#HIGH} to {@link TaskController#LOW}
+	 */
+	public void setPriorityWeights(int[] weights) {
+		backlog.setWeights(weights);
+	}
+	
+	/**
+	 * Sets the write-ahead journal of the submitted tasks and of their completions, so that the tasks still
+	 * outstanding if the master process dies can be replayed on restart; applies to tasks submitted from then on
+	 * 
+	 * @param journal the journal, or null to stop journaling
+	 */
+	public void setJournal(TaskJournal journal) {
+		this.journal = journal;
+		taskSink.setJournal(journal);
+	}
+	
+	/**
+	 * Submits again the tasks found outstanding in the journal when it was opened, then discards the segments
+	 * they were recovered from; called on restart once the journal is set, before submitting new tasks. The
+	 * results of the replayed tasks are passed to a single callback as their original callbacks died with the
+	 * previous process, and tasks of methods the given services do not know are dropped
+	 * 
+	 * @param services the services the tasks were submitted to, e.g. their stubs
+	 * @param done callback handler of the replayed tasks' results
+	 * @return the number of replayed tasks
+	 */
+	public int replayJournal(Service[] services, RpcCallback<Message> done) {
+		TaskJournal journal = this.journal;
+		if (journal == null) {
+			throw new IllegalStateException("No journal to replay");
+		}
+		
+		Map<Long, Service> servicesByOpCode = new HashMap<Long, Service>();
+		Map<Long, MethodDescriptor> methodsByOpCode = new HashMap<Long, MethodDescriptor>();
+		for (Service service : services) {
+			for (MethodDescriptor method : service.getDescriptorForType().getMethods()) {
+				servicesByOpCode.put(OpCodeTable.opCode(method), service);
+				methodsByOpCode.put(OpCodeTable.opCode(method), method);
+			}
+		}
+		
+		int replayed = 0;
+		for (TaskJournal.JournaledTask journaledTask : journal.recoveredTasks()) {
+			MethodDescriptor method = methodsByOpCode.get(journaledTask.opCode);
+			if (method == null) {
+				new IllegalArgumentException("Dropping journaled task " + journaledTask.journalId 
+						+ " of unknown op-code " + journaledTask.opCode).printStackTrace();
+				continue;
+			}
+			
+			Service service = servicesByOpCode.get(journaledTask.opCode);
+			try {
+				Message request = service.getRequestPrototype(method).getParserForType().parseFrom(journaledTask.request);
+				callMethod(method, null, request, service.getResponsePrototype(method), done);
+				replayed++;
+			} catch (InvalidProtocolBufferException e) {
+				e.printStackTrace();
+			}
+		}
 		
-		outputStream.write(opBytes);
-		outputStream.write(requestIdBytes);
-		outputStream.write(request.toByteArray());
+		journal.discardRecovered();
+		return replayed;
+	}
+	
+	/**
+	 * Sets the callback receiving every result of a task method, e.g. the partial aggregates of an associative 
+	 * method whose results are merged by a combiner on the worker nodes, so that the aggregates need not be 
+	 * told apart from the tasks' results; the tasks of the method then complete with the default instance of 
+	 * their result type. Required for a method combined on the worker nodes, whose tasks merged into an 
+	 * aggregate fail without it
+	 * 
+	 * @param methodDescriptor the task method
+	 * @param callback the aggregate callback, run on the task sink's listener thread
+	 */
+	public void setAggregateCallback(MethodDescriptor methodDescriptor, RpcCallback<Message> callback) {
+		taskSink.setAggregateCallback(OpCodeTable.opCode(methodDescriptor), callback);
+	}
+	
+	/**
+	 * Sets how submitted tasks are coalesced into batches, each sent to a worker node as a single frame; a 
+	 * batch never holds more tasks than the worker node has credits, so small tasks batch best with a
+	 * prefetch count of at least the batch size. Applies to batches sent from then on
+	 * 
+	 * @param maxTasks maximum number of tasks per batch, 1 to send every task on its own
+	 * @param maxBytes maximum size of a batch, exceeded only by a batch made of a single task
+	 * @param lingerMillis how long a partial batch is held back waiting for more tasks, or 0 to send whatever 
+	 * tasks are waiting straight away, which still batches them under load
+	 */
+	public void setBatching(int maxTasks, int maxBytes, long lingerMillis) {
+		if (maxTasks < 1 || maxBytes < 1 || lingerMillis < 0) {
+			throw new IllegalArgumentException("invalid batch limits " + maxTasks + ", " + maxBytes + " or linger " + lingerMillis);
+		}
+		this.batchMaxTasks = maxTasks;
+		this.batchMaxBytes = maxBytes;
+		this.batchLingerMillis = lingerMillis;
+	}
+	
+	/**
+	 * Sets how the affinity key of the tasks submitted without one in their {@link TaskController} is extracted
+	 * from their request. Worker nodes are placed on a consistent-hash ring as they announce themselves, and a 
+	 * task with an affinity key goes to the worker node owning the key on the ring while it has credit, or else
+	 * to the next one along the ring that has, so that worker nodes can keep the data of their keys cached; a
+	 * worker node joining only takes over about its share of the keys. Tasks delivered again (e.g., overdue, 
+	 * stolen or speculated) go to any worker node
+	 * 
+	 * @param key extracts the affinity key of a task from its request, returning null for none; null to
+	 * only use the keys set on the controllers
+	 */
+	public void setAffinityKey(Function<Message, String> key) {
+		this.affinityKey = key;
+	}
+	
+	/**
+	 * Sets when tasks are speculatively delivered again: a task still without a result after a multiple of a
+	 * quantile of the running task latencies is sent once more to another worker node as soon as no other task
+	 * is waiting to be sent, and the first of the two results completes it while the task sink drops the other.
+	 * Latencies are measured from a task's first delivery to its result, and tasks are only speculated on once
+	 * enough of them were recorded. Only suits tasks that may safely run twice
+	 * 
+	 * @param quantile quantile of the task latencies, between 0 and 1 (e.g., 0.95)
+	 * @param factor multiple of the quantile's latency beyond which a task is a straggler (e.g., 1.5), or 0 not
+	 * to speculate, the default
+	 */
+	public void setSpeculativeExecution(double quantile, double factor) {
+		if (quantile <= 0 || quantile > 1 || factor < 0) {
+			throw new IllegalArgumentException("invalid quantile " + quantile + " or factor " + factor);
+		}
+		this.speculationQuantile = quantile;
+		this.speculationFactor = factor;
+	}
+	
+	/**
+	 * @return the running distribution of the time from a task's first delivery to its result
+	 */
+	public LatencyHistogram getTaskLatencies() {
+		return taskSink.getTaskLatencies();
+	}
+	
+	/**
+	 * Sets how tasks are stolen from busy worker nodes: while no task is waiting to be sent and a worker node
+	 * sits idle, the worker node holding the most tasks is asked to give back half of those still waiting in
+	 * its local queue, which are then sent to the idle ones. The tasks keep their request ids, so their results
+	 * complete them wherever they run. Only worker nodes running their tasks on a pool of task threads have a 
+	 * local queue to steal from
+	 * 
+	 * @param intervalMillis minimum time between two requests to the same worker node, or 0 not to steal tasks
+	 */
+	public void setWorkStealing(long intervalMillis) {
+		if (intervalMillis < 0) {
+			throw new IllegalArgumentException("steal interval must not be negative: " + intervalMillis);
+		}
+		this.stealIntervalMillis = intervalMillis;
+	}
+	
+	/**
+	 * Dispatch thread loop; the only thread touching the task socket, it keeps track of the credits announced 
+	 * by the worker nodes, sends the submitted tasks in batches to the worker nodes with credit left, releases 
+	 * the delayed tasks once due, delivers again the tasks whose results are overdue, speculatively delivers the
+	 * stragglers again and steals tasks from busy worker nodes for the idle ones
+	 */
+	private void dispatch() {
+		ZMQ.Poller poller = new ZMQ.Poller(2);
+		int socketIndex = poller.register(zmqSocket, ZMQ.Poller.POLLIN);
+		int submittedIndex = submitted.register(poller);
+		
+		inFlight = new TimingWheel<PendingTask>(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+		delayed = new TimingWheel<PendingTask>(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+		Consumer<PendingTask> release = new Consumer<PendingTask>() {
+			@Override
+			public void accept(PendingTask task) {
+				if (taskSink.isPending(task)) {
+					backlog.add(task, false);
+				}
+			}
+		};
+		
+		running = new TimingWheel<PendingTask>(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+		Consumer<PendingTask> straggling = new Consumer<PendingTask>() {
+			@Override
+			public void accept(PendingTask task) {
+				if (taskSink.isPending(task) && !task.speculated) {
+					stragglers.addLast(task);
+				}
+			}
+		};
+		
+		Consumer<PendingTask> redeliver = new Consumer<PendingTask>() {
+			@Override
+			public void accept(PendingTask task) {
+				// the task is still registered only if no result arrived and it did not expire, and it is only
+				// overdue if it was not delivered again since, e.g. after being stolen
+				if (taskSink.isPending(task) && task.redeliverAt <= System.currentTimeMillis()) {
+					backlog.add(task, true);
+				}
+			}
+		};
+		
+		long timeout = -1;
+		long stragglerRefreshAt = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			poller.poll(timeout);
+			
+			if (poller.pollin(socketIndex)) {
+				receiveControl();
+			}
+			
+			if (poller.pollin(submittedIndex)) {
+				submitted.clear();
+				
+				PendingTask task;
+				while ((task = submissions.poll()) != null) {
+					if (task.runAt > 0) {
+						delayed.schedule(task, task.runAt);
+					} else {
+						backlog.add(task, false);
+					}
+				}
+			}
+			
+			long now = System.currentTimeMillis();
+			if (!inFlight.isEmpty()) {
+				inFlight.advance(now, redeliver);
+			}
+			if (!delayed.isEmpty()) {
+				delayed.advance(now, release);
+			}
+			if (!running.isEmpty()) {
+				running.advance(now, straggling);
+			}
+			
+			if (now >= stragglerRefreshAt) {
+				stragglerMillis = stragglerThreshold();
+				stragglerRefreshAt = now + STRAGGLER_REFRESH_MILLIS;
+			}
+			
+			// overdue tasks were put in front of their lanes, they go out before the newly submitted ones
+			long lingerUntil = -1;
+			while (!backlog.isEmpty() && workers.hasCredit()) {
+				lingerUntil = backlog.since() + batchLingerMillis;
+				if (now < lingerUntil && backlog.size() < batchMaxTasks && backlog.bytes() < batchMaxBytes)
+					break;
+				
+				deliverBatch(now);
+				lingerUntil = -1;
+			}
+			
+			// stragglers only take up the credits no other task is waiting for
+			while (backlog.isEmpty() && !stragglers.isEmpty()) {
+				PendingTask task = stragglers.peekFirst();
+				if (taskSink.isPending(task) && !task.speculated) {
+					if (!workers.hasCreditBesides(task.worker))
+						break;
+					
+					task.speculated = true;
+					backlog.add(task, true);
+					deliverBatch(now);
+				}
+				stragglers.pollFirst();
+			}
+			
+			long stealAgainAt = -1;
+			long stealInterval = stealIntervalMillis;
+			if (stealInterval > 0 && backlog.isEmpty() && workers.hasIdle()) {
+				stealAgainAt = steal(now, stealInterval);
+			}
+			
+			// once no task awaits its result, the timeouts of the delivered tasks are all stale
+			if ((!inFlight.isEmpty() || !running.isEmpty()) && taskSink.getPendingTaskCount() == 0) {
+				inFlight.clear();
+				running.clear();
+			}
+			
+			// only wake up for timers while there are delivered tasks to watch, delayed tasks, a partial batch 
+			// lingering or idle worker nodes waiting to steal tasks
+			timeout = inFlight.isEmpty() && delayed.isEmpty() && running.isEmpty() ? -1 : TIMER_TICK_MILLIS;
+			if (lingerUntil >= 0) {
+				// never poll with 0, which would return at once and spin
+				long lingerMillis = Math.max(lingerUntil - now, 1);
+				timeout = timeout < 0 ? lingerMillis : Math.min(timeout, lingerMillis);
+			}
+			if (stealAgainAt >= 0) {
+				timeout = timeout < 0 ? Math.max(stealAgainAt - now, 1) : Math.min(timeout, Math.max(stealAgainAt - now, 1));
+			}
+		}
+	}
+	
+	/**
+	 * @return the latency beyond which a task is a straggler as per the running task latencies, or -1 not to 
+	 * speculate
+	 */
+	private long stragglerThreshold() {
+		double factor = speculationFactor;
+		LatencyHistogram latencies = taskSink.getTaskLatencies();
+		if (factor <= 0 || latencies.count() < SPECULATION_MIN_SAMPLES)
+			return -1;
+		
+		return Math.max((long) (latencies.quantile(speculationQuantile) * factor), TIMER_TICK_MILLIS);
+	}
+	
+	/**
+	 * Receives the control messages queued on the task socket, each made of the worker node's routing identity, 
+	 * the command and the argument frames, adds the announced credits to their worker nodes, puts the tasks
+	 * given back in front of their lanes and forgets the worker nodes leaving
+	 */
+	private void receiveControl() {
+		byte[] identityFrame;
+		while ((identityFrame = zmqSocket.recv(ZMQ.DONTWAIT)) != null) {
+			byte[] commandFrame = FrameBuffer.receiveNextFrame(zmqSocket);
+			byte[] argumentFrame = FrameBuffer.receiveLastFrame(zmqSocket);
+			if (argumentFrame == null || commandFrame.length != 1 
+					|| !TaskProtocol.isWellFormed(commandFrame[0], argumentFrame)) {
+				// malformed message, drop it and skip to next message
+				new IllegalArgumentException("Dropping malformed control message from a worker node").printStackTrace();
+				continue;
+			}
+			
+			if (commandFrame[0] == TaskProtocol.READY) {
+				workers.grant(identityFrame, Utils.bytesToLong(argumentFrame));
+			} else if (commandFrame[0] == TaskProtocol.RETURNED) {
+				requeueReturned(identityFrame, argumentFrame);
+			} else if (commandFrame[0] == TaskProtocol.LEAVING) {
+				// no task is sent to the worker node after the echo
+				workers.leave(identityFrame);
+				if (route(identityFrame)) {
+					zmqSocket.send(TaskProtocol.LEAVING_FRAME, ZMQ.SNDMORE);
+					frameBuffer.sendLong(zmqSocket, 0, 0);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Puts the tasks a worker node gave back in front of their lanes, to be sent to another worker node, and 
+	 * adds their credits back to the worker node unless it is leaving; a worker node giving back no task is 
+	 * asked less often
+	 * 
+	 * @param identityFrame routing identity of the worker node
+	 * @param idsFrame the 8-byte request ids of the tasks
+	 */
+	private void requeueReturned(byte[] identityFrame, byte[] idsFrame) {
+		ByteBuffer ids = ByteBuffer.wrap(idsFrame);
+		int returned = 0;
+		while (ids.remaining() >= Long.BYTES) {
+			returned++;
+			
+			// tasks completed or delivered elsewhere since are left alone
+			PendingTask task = taskSink.getPendingTask(ids.getLong());
+			if (task != null && task.worker != null && Arrays.equals(task.worker.identity, identityFrame)) {
+				backlog.add(task, true);
+			}
+		}
+		
+		WorkerCredits.WorkerNode worker = workers.get(identityFrame);
+		if (worker != null) {
+			worker.stealMisses = returned == 0 ? worker.stealMisses + 1 : 0;
+			workers.grant(identityFrame, returned);
+		}
+	}
+	
+	/**
+	 * Asks the worker node holding the most tasks to give back half of them, as far as they are still waiting
+	 * in its local queue; a worker node is asked at most once per interval, and less and less often while it 
+	 * answers with no task, so that the other busy worker nodes get asked in the meantime
+	 * 
+	 * @param now current time
+	 * @param interval minimum time between two requests to the same worker node
+	 * @return the time a worker node may be asked next, or -1 if no worker node holds enough tasks
+	 */
+	private long steal(long now, long interval) {
+		WorkerCredits.WorkerNode victim = workers.busiest(STEAL_MIN_HOLDING, now);
+		if (victim == null)
+			return workers.nextStealAt(STEAL_MIN_HOLDING);
+		
+		if (route(victim.identity)) {
+			zmqSocket.send(TaskProtocol.STEAL_FRAME, ZMQ.SNDMORE);
+			frameBuffer.sendLong(zmqSocket, victim.holding / 2, 0);
+		}
+		
+		victim.stealBlockedUntil = now + (interval << Math.min(victim.stealMisses, STEAL_MAX_BACKOFF_SHIFT));
+		return workers.nextStealAt(STEAL_MIN_HOLDING);
+	}
+	
+	/**
+	 * @param task a task to be sent
+	 * @return whether the task goes to the worker node of its affinity key, i.e. it has one and is sent for
+	 * the first time
+	 */
+	private static boolean routedByAffinity(PendingTask task) {
+		return task.affine && task.worker == null;
+	}
+	
+	/**
+	 * Sends the tasks at the head of the backlog in a batch to the next worker node with credit, or the one of
+	 * the first task's affinity key, and, with a visibility timeout, watches them for redelivery; the batch 
+	 * message carries the worker node's routing identity and the batch frames
+	 * 
+	 * @param now current time
+	 */
+	private void deliverBatch(long now) {
+		dropExpired();
+		if (backlog.isEmpty())
+			return;
+		
+		PendingTask task = backlog.poll();
+		WorkerCredits.WorkerNode worker = routedByAffinity(task) ? workers.takeFor(task.affinity) : workers.take(task.worker);
+		long timeout = visibilityTimeoutMillis;
+		
+		try {
+			while (true) {
+				batch.addTask(task.opCode, task.requestId, task.priority, task.request);
+				batchTasks.add(task);
+				
+				task.worker = worker;
+				if (task.deliveredAt == 0) {
+					task.deliveredAt = now;
+					if (stragglerMillis > 0) {
+						running.schedule(task, now + stragglerMillis);
+					}
+				}
+				if (timeout > 0) {
+					task.redeliverAt = now + timeout;
+					inFlight.schedule(task, task.redeliverAt);
+				}
+				
+				// stop at the limits of the batch, at a task sticking to another worker node, or once the worker node
+				// has no credit left
+				dropExpired();
+				if (backlog.isEmpty() || batch.size() >= batchMaxTasks 
+						|| batch.bytes() + backlog.peek().request.getSerializedSize() > batchMaxBytes
+						|| (routedByAffinity(backlog.peek()) && workers.preferred(backlog.peek().affinity) != worker)
+						|| !workers.takeFrom(worker))
+					break;
+				
+				task = backlog.poll();
+			}
+		} catch (IOException e) {
+			// the task that could not be encoded would fail again, fail it and give its credit back to the worker 
+			// node, the tasks before it are sent
+			e.printStackTrace();
+			taskSink.fail(task.requestId);
+			workers.grant(worker.identity, 1);
+		}
+		
+		if (batch.isEmpty())
+			return;
+		
+		if (route(worker.identity)) {
+			batch.send(zmqSocket, 0);
+		} else {
+			// the worker node is gone along with its credits, put the tasks back in front of their lanes in order
+			batch.clear();
+			for (int i = batchTasks.size() - 1; i >= 0; i--) {
+				PendingTask requeued = batchTasks.get(i);
+				requeued.worker = null;
+				requeued.redeliverAt = Long.MAX_VALUE;	// no longer due for redelivery
+				backlog.add(requeued, true);
+			}
+		}
+		batchTasks.clear();
+	}
+	
+	/**
+	 * Drops the tasks at the head of the backlog that expired, or completed, while waiting there, so that no
+	 * credit nor worker node time is spent on them; their callbacks were already run by the task sink
+	 */
+	private void dropExpired() {
+		while (!backlog.isEmpty() && !taskSink.isPending(backlog.peek())) {
+			backlog.poll();
+		}
+	}
+	
+	/**
+	 * Sends the routing identity frame of a message to a worker node, forgetting the worker node if its 
+	 * connection is gone so that it is taken off the ring and its credits are dropped
+	 * 
+	 * @param identity routing identity of the worker node
+	 * @return whether the rest of the message can be sent, i.e. the worker node is connected
+	 */
+	private boolean route(byte[] identity) {
+		try {
+			zmqSocket.send(identity, ZMQ.SNDMORE);
+			return true;
+		} catch (ZMQException e) {
+			if (e.getErrorCode() != ZMQ.Error.EHOSTUNREACH.getCode())
+				throw e;
+			
+			workers.leave(identity);
+			return false;
+		}
 	}
 }
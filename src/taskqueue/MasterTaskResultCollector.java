@@ -1,21 +1,27 @@
 package taskqueue;
 
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 import org.zeromq.ZMQ;
 
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
-import com.google.protobuf.Service;
-import com.google.protobuf.Descriptors.MethodDescriptor;
 
+import base.Dispatchers;
 import base.Listener;
-import base.RequestMessage;
 import base.ResponseMessage;
+import base.StripedExecutor;
+import utils.LatencyHistogram;
+import utils.LongHashTable;
 
 /**
  * MasterTaskResultCollector is responsible for listening for forwarded results
@@ -27,16 +33,52 @@ import base.ResponseMessage;
 public class MasterTaskResultCollector extends Listener {
 	
 	/**
-	 * Current request id, used to keep an unique identifier for the task
+	 * Default maximum number of tasks awaiting their results
 	 */
-	AtomicLong requestId = new AtomicLong();
+	public static final int DEFAULT_CAPACITY = 1 << 16;
 	
 	/**
-	 * A map of submitted tasks, their calls and their request id; used to invoke
+	 * Default time a task may wait for its result before it is abandoned
+	 */
+	public static final long DEFAULT_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+	
+	/**
+	 * How often abandoned tasks are swept out of the registry
+	 */
+	private static final long SWEEP_INTERVAL_MILLIS = 1000;
+	
+	/**
+	 * The registry of submitted tasks, their calls and their request id; used to invoke
 	 * the task's callback after the result of the task is received by the master
 	 * from the worker nodes
 	 */
-	Map<Long, ResponseMessage> resultCallBacks = new HashMap<Long, ResponseMessage>();
+	CallbackRegistry resultCallBacks;
+	
+	/**
+	 * Callbacks receiving every result of their task method, by op-code; immutable and replaced wholesale
+	 */
+	private volatile LongHashTable<RpcCallback<Message>> aggregateCallbacks = LongHashTable.empty();
+	
+	/**
+	 * Scratch list of the tasks completed by a partial aggregate; confined to the listener thread
+	 */
+	private final List<PendingTask> mergedTasks = new ArrayList<PendingTask>();
+	
+	/**
+	 * Executor the callbacks run on, and the key of the tasks if it is striped
+	 */
+	private volatile Executor callbackExecutor = Dispatchers.inline();
+	private volatile BiFunction<Message, Message, Object> callbackKey;
+	
+	/**
+	 * Journal the completions of the journaled tasks are appended to, or null
+	 */
+	private volatile TaskJournal journal;
+	
+	/**
+	 * Running distribution of the time from a task's first delivery to its result
+	 */
+	private final LatencyHistogram taskLatencies = new LatencyHistogram();
 	
 	/**
 	 * Constructor
@@ -46,20 +88,123 @@ public class MasterTaskResultCollector extends Listener {
 	 * @param io_threads number of threads dedicated to zmq sockets
 	 */
 	public MasterTaskResultCollector(String host, int port, int io_threads) {
+		this(host, port, io_threads, DEFAULT_CAPACITY, DEFAULT_EXPIRY_MILLIS);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param host task sink hostname
+	 * @param port task sink port 
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param capacity maximum number of tasks awaiting their results; submitting blocks beyond it
+	 * @param expiryMillis how long a task may wait for its result before it is abandoned and its callback
+	 * run with null, or 0 to never expire
+	 */
+	public MasterTaskResultCollector(String host, int port, int io_threads, int capacity, long expiryMillis) {
+		this(host, port, io_threads, capacity, expiryMillis, 0);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param host task sink hostname
+	 * @param port task sink port 
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param capacity maximum number of tasks awaiting their results; submitting blocks beyond it
+	 * @param expiryMillis how long a task may wait for its result before it is abandoned and its callback
+	 * run with null, or 0 to never expire
+	 * @param shard shard of the Master, encoded in the request ids of its tasks
+	 */
+	public MasterTaskResultCollector(String host, int port, int io_threads, int capacity, long expiryMillis, int shard) {
 		super(host, port, io_threads);
+		resultCallBacks = new CallbackRegistry(capacity, expiryMillis, shard);
 	}
 	
 	/**
 	 * Method that registers a task just before it's sent out to the worker nodes
-	 * so that we can refer to it after the work nodes forward its results back later on
+	 * so that we can refer to it after the work nodes forward its results back later on;
+	 * blocks while the maximum number of tasks are awaiting their results
+	 * 
+	 * @param opCode op-code of the service method
+	 * @param request protobuf request object
+	 * @param responseMessage the wrapper of the submitted work
+	 * @return the pending task, holding the request id associated with the task
+	 */
+	public PendingTask registerTask(long opCode, Message request, ResponseMessage responseMessage) {
+		return resultCallBacks.register(opCode, request, responseMessage);
+	}
+	
+	/**
+	 * Registers a task held back before it's sent out to the worker nodes, the time it is held back
+	 * not counting towards its expiry; blocks while the maximum number of tasks are awaiting their results
+	 * 
+	 * @param opCode op-code of the service method
+	 * @param request protobuf request object
+	 * @param responseMessage the wrapper of the submitted work
+	 * @param holdMillis how long the task is held back
+	 * @return the pending task, holding the request id associated with the task
+	 */
+	public PendingTask registerTask(long opCode, Message request, ResponseMessage responseMessage, long holdMillis) {
+		return resultCallBacks.register(opCode, request, responseMessage, holdMillis);
+	}
+	
+	/**
+	 * Registers a task held back before it's sent out to the worker nodes, waiting up to a timeout while the 
+	 * maximum number of tasks are awaiting their results
 	 * 
+	 * @param opCode op-code of the service method
+	 * @param request protobuf request object
 	 * @param responseMessage the wrapper of the submitted work
-	 * @return the request id associated with the task
+	 * @param holdMillis how long the task is held back
+	 * @param timeoutNanos how long to wait, 0 not to wait at all
+	 * @return the pending task, or null if no task completed in time
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public PendingTask tryRegisterTask(long opCode, Message request, ResponseMessage responseMessage, 
+			long holdMillis, long timeoutNanos) throws InterruptedException {
+		return resultCallBacks.tryRegister(opCode, request, responseMessage, holdMillis, timeoutNanos);
+	}
+	
+	/**
+	 * @return the number of tasks awaiting their results
 	 */
-	public Long registerCallback(ResponseMessage responseMessage) {
-		Long currentId = requestId.incrementAndGet();
-		resultCallBacks.put(currentId, responseMessage);
-		return currentId;
+	public int getPendingTaskCount() {
+		return resultCallBacks.size();
+	}
+	
+	/**
+	 * @return the running distribution of the time from a task's first delivery to its result, not counting 
+	 * the results merged into partial aggregates as they are held back by the combine window
+	 */
+	public LatencyHistogram getTaskLatencies() {
+		return taskLatencies;
+	}
+	
+	/**
+	 * Sets the journal the completions of the journaled tasks are appended to, including the tasks abandoned
+	 * on expiry
+	 * 
+	 * @param journal the journal, or null
+	 */
+	public void setJournal(TaskJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * @param task a registered task
+	 * @return whether the task is still awaiting its result
+	 */
+	public boolean isPending(PendingTask task) {
+		return resultCallBacks.isPending(task);
+	}
+	
+	/**
+	 * @param requestId the request id of a task
+	 * @return the task still awaiting its result under the request id, or null
+	 */
+	public PendingTask getPendingTask(long requestId) {
+		return resultCallBacks.get(requestId);
 	}
 	
 	@Override
@@ -70,40 +215,281 @@ public class MasterTaskResultCollector extends Listener {
 	
 	/**
 	 * The overriden listener thread for task sink to listen and decode task results
-	 * as they come in from the worker nodes; decode the result and pass it to the task's
+	 * as they come in from the worker nodes in batches; decode each result and pass it to the task's
 	 * registered callback handler
 	 * 
 	 */
 	@Override
 	public void start() {
+		ZMQ.Poller poller = new ZMQ.Poller(1);
+		int socketIndex = poller.register(zmqSocket, ZMQ.Poller.POLLIN);
+		long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+		
+		Consumer<PendingTask> abandon = new Consumer<PendingTask>() {
+			@Override
+			public void accept(PendingTask task) {
+				// abandoned tasks are not to be recovered either
+				journalCompletion(task);
+				
+				// fail the task as per the protobuf rpc conventions, so that whoever waits for it moves on
+				completeAll(task, Collections.<PendingTask>emptyList(), null);
+			}
+		};
+		
 		while (!Thread.currentThread().isInterrupted()) {
+			poller.poll(SWEEP_INTERVAL_MILLIS);
 			
-			// get the top request from the zeromq listening socket
-			byte[] requestArr;
-			synchronized (socketBlock) {
-				requestArr = zmqSocket.recv(0);
+			if (poller.pollin(socketIndex)) {
+				for (int i = 0; i < RECEIVE_BATCH; i++) {
+					// get the top batch of results from the zeromq listening socket
+					// the listener thread is the only thread touching the socket
+					byte[] batchFrame = zmqSocket.recv(ZMQ.DONTWAIT);
+					if (batchFrame == null)	// no more results queued on the socket
+						break;
+					
+					while (zmqSocket.hasReceiveMore()) {	// skip unexpected frames to stay aligned on the next message
+						zmqSocket.recv(0);
+					}
+					
+					completeBatch(batchFrame);
+				}
 			}
 			
-			// parse corresponding method/service descriptor from its hashed value
-			Long opCode = ByteBuffer.wrap(requestArr).getLong();
-			ResponseMessage responseMessage = resultCallBacks.get(opCode);
-			
-			if (responseMessage == null)	// invalid message as the service descriptor cannot be found, skip to next message
-				continue;
-			
-			Message response = responseMessage.response;
-			RpcCallback<Message> callback = responseMessage.callback;
-						
-			try {
-				// parse the request parameters and call the registered service implementation with the method and parameters
-				response = response.getParserForType().parseFrom(requestArr, Long.BYTES, requestArr.length - Long.BYTES);
-				callback.run(response); // pass the results to that task's original callback		
-			} catch (InvalidProtocolBufferException e) {
-				e.printStackTrace();
+			// free the slots of tasks whose results never arrived
+			long now = System.currentTimeMillis();
+			if (now >= nextSweep) {
+				resultCallBacks.expire(abandon);
+				nextSweep = now + SWEEP_INTERVAL_MILLIS;
+			}
+		}
+	}
+	
+	/**
+	 * Sets the callback receiving every result of a task method, e.g. the partial aggregates of an associative
+	 * method merged on the worker nodes; the tasks of the method then complete with the default instance of
+	 * their result type
+	 * 
+	 * @param opCode op-code of the task method
+	 * @param callback the aggregate callback
+	 */
+	public synchronized void setAggregateCallback(long opCode, RpcCallback<Message> callback) {
+		if (callback == null) {
+			throw new IllegalArgumentException("aggregate callback must not be null");
+		}
+		aggregateCallbacks = aggregateCallbacks.plus(Collections.singletonMap(opCode, callback));
+	}
+	
+	/**
+	 * Fans a batch of task results, each made of the request ids of the tasks it completes and the result, 
+	 * out to the callbacks of their tasks
+	 * 
+	 * @param batchFrame the batch frame
+	 */
+	protected void completeBatch(byte[] batchFrame) {
+		CodedInputStream input = CodedInputStream.newInstance(batchFrame);
+		
+		try {
+			while (!input.isAtEnd()) {
+				int tasks = input.readRawVarint32();
+				if (tasks == 1) {
+					long requestId = input.readFixed64();
+					int limit = input.pushLimit(input.readRawVarint32());
+					
+					complete(requestId, input);
+					
+					// skip whatever the result left unread, e.g. because its task was already completed
+					input.skipRawBytes(input.getBytesUntilLimit());
+					input.popLimit(limit);
+				} else {
+					completeAggregate(tasks, input);
+				}
+			}
+		} catch (IOException e) {	// malformed batch, the rest of its results are lost
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Decodes a task result and passes it to the callback registered under its request id, removing
+	 * the task from the registry
+	 * 
+	 * @param requestId request id of the task
+	 * @param input stream positioned on the serialized task result, limited to its length
+	 */
+	protected void complete(long requestId, CodedInputStream input) {
+		// find the callback registered for the task's request id; a task delivered more than once completes
+		// with the first result, and the late duplicates find nothing registered
+		PendingTask pendingTask = remove(requestId);
+		
+		if (pendingTask == null)	// unknown, completed, expired or duplicate request id, skip to next message
+			return;
+		
+		long deliveredAt = pendingTask.deliveredAt;
+		if (deliveredAt > 0) {
+			taskLatencies.record(System.currentTimeMillis() - deliveredAt);
+		}
+		
+		try {
+			// parse the task result and pass it to that task's original callback, or the aggregate callback
+			Message response = pendingTask.response.getParserForType().parseFrom(input);
+			completeAll(pendingTask, Collections.<PendingTask>emptyList(), response);
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Decodes the partial aggregate of several task results, passes it to the aggregate callback of their
+	 * method and completes the tasks still awaiting their results, removing them from the registry; without an
+	 * aggregate callback the tasks fail, as none of them has a result of its own
+	 * 
+	 * @param tasks number of tasks merged into the aggregate
+	 * @param input stream positioned on the request ids of the tasks, followed by the length-prefixed aggregate
+	 * @throws IOException if the entry is malformed
+	 */
+	protected void completeAggregate(int tasks, CodedInputStream input) throws IOException {
+		mergedTasks.clear();
+		for (int i = 0; i < tasks; i++) {
+			PendingTask pendingTask = remove(input.readFixed64());
+			if (pendingTask != null) {
+				mergedTasks.add(pendingTask);
+			}
+		}
+		
+		int limit = input.pushLimit(input.readRawVarint32());
+		try {
+			if (!mergedTasks.isEmpty()) {
+				PendingTask first = mergedTasks.get(0);
+				List<PendingTask> others = mergedTasks.subList(1, mergedTasks.size());
+				
+				if (aggregateCallbacks.size() == 0 || aggregateCallbacks.get(first.opCode) == null) {
+					// the aggregate is no task's own result, fail the tasks rather than make up their results
+					new IllegalStateException("No aggregate callback for the merged results of op-code " 
+							+ first.opCode + ", failing " + mergedTasks.size() + " tasks").printStackTrace();
+					completeAll(first, others, null);
+				} else {
+					Message aggregate = first.response.getParserForType().parseFrom(input);
+					completeAll(first, others, aggregate);
+				}
+			}
+		} catch (InvalidProtocolBufferException e) {
+			e.printStackTrace();
+		}
+		
+		input.skipRawBytes(input.getBytesUntilLimit());
+		input.popLimit(limit);
+	}
+	
+	/**
+	 * Removes a task from the registry, journaling its completion
+	 * 
+	 * @param requestId the request id of the task
+	 * @return the pending task, or null if the id is unknown, already completed or expired
+	 */
+	private PendingTask remove(long requestId) {
+		PendingTask pendingTask = resultCallBacks.remove(requestId);
+		if (pendingTask != null) {
+			journalCompletion(pendingTask);
+		}
+		return pendingTask;
+	}
+	
+	/**
+	 * Fails a task that cannot be delivered, e.g. because its request cannot be encoded, removing it from the
+	 * registry, journaling its completion and running its callback with null
+	 * 
+	 * @param requestId the request id of the task
+	 */
+	public void fail(long requestId) {
+		PendingTask pendingTask = remove(requestId);
+		if (pendingTask != null) {
+			completeAll(pendingTask, Collections.<PendingTask>emptyList(), null);
+		}
+	}
+	
+	private void journalCompletion(PendingTask pendingTask) {
+		TaskJournal journal = this.journal;
+		if (journal != null && pendingTask.journalId != 0) {
+			journal.completed(pendingTask.journalId);
+		}
+	}
+	
+	/**
+	 * Hands the callbacks of the tasks completed by a result off to the callback executor, on the stripe of
+	 * the first task's key if the executor is striped
+	 * 
+	 * @param first the task the result is passed to
+	 * @param others other tasks whose results were merged into the result, copied if they are to outlive the call
+	 * @param result the result, or null if the task failed
+	 */
+	private void completeAll(final PendingTask first, List<PendingTask> others, final Message result) {
+		final List<PendingTask> otherTasks = others.isEmpty() ? Collections.<PendingTask>emptyList() : new ArrayList<PendingTask>(others);
+		
+		Runnable runCallbacks = new Runnable() {
+			@Override
+			public void run() {
+				runCallbacks(first, otherTasks, result);
+			}
+		};
+		
+		Executor executor = callbackExecutor;
+		BiFunction<Message, Message, Object> key = callbackKey;
+		if (key != null && executor instanceof StripedExecutor) {
+			((StripedExecutor) executor).execute(key.apply(first.request, result), runCallbacks);
+		} else {
+			executor.execute(runCallbacks);
+		}
+	}
+	
+	/**
+	 * Passes a result to the aggregate callback of its method if any, completing the tasks with the default 
+	 * instance of their result type, or else to the task's callback; the result of several tasks merged is 
+	 * only ever passed to the aggregate callback
+	 * 
+	 * @param first the task the result is passed to, or the first of the tasks merged into it
+	 * @param others other tasks whose results were merged into the result
+	 * @param result the result, or null if the tasks failed
+	 */
+	private void runCallbacks(PendingTask first, List<PendingTask> others, Message result) {
+		RpcCallback<Message> aggregateCallback = aggregateCallbacks.size() == 0 ? null : aggregateCallbacks.get(first.opCode);
+		if (result != null && aggregateCallback != null) {
+			aggregateCallback.run(result);
+			result = result.getDefaultInstanceForType();
+		}
+		
+		if (first.callback != null) {
+			first.callback.run(result);
+		}
+		for (PendingTask other : others) {
+			if (other.callback != null) {
+				other.callback.run(result);
 			}
 		}
 	}
 	
+	/**
+	 * Sets the executor the callbacks run on once their results are decoded by the listener thread, so that
+	 * slow callbacks do not hold up the intake of results; defaults to running them on the listener thread
+	 * 
+	 * @param executor the callback executor
+	 */
+	public void setCallbackExecutor(Executor executor) {
+		this.callbackKey = null;
+		this.callbackExecutor = executor;
+	}
+	
+	/**
+	 * Sets a striped executor the callbacks run on once their results are decoded by the listener thread; the 
+	 * callbacks of tasks with equal keys run one after the other in the order their results arrived
+	 * 
+	 * @param executor the striped callback executor
+	 * @param key extracts the key of a task from its request and its result, the latter null if the task failed
+	 */
+	public void setCallbackExecutor(StripedExecutor executor, BiFunction<Message, Message, Object> key) {
+		this.callbackExecutor = executor;
+		this.callbackKey = key;
+	}
+	
 	@Override
 	protected RpcCallback<Message> callback() {
 		// do nothing as we override the default listener implementation, this method is redudant for this case
@@ -0,0 +1,76 @@
+package taskqueue;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+
+import base.ResponseMessage;
+
+/**
+ * PendingTask is a submitted task awaiting its result; besides the response type and the callback
+ * handler, it keeps the request id it was registered under, the method op-code and arguments so that
+ * it can be delivered again, preferably to another worker node than the last one, and when it expires
+ * if no result arrives
+ * 
+ * @author paulcao
+ *
+ */
+public class PendingTask extends ResponseMessage {
+	public final long requestId;
+	public final long opCode;
+	public final Message request;
+	public final long expiresAt;
+	
+	/**
+	 * Priority lane of the task, set by the Master before it hands the task to its dispatch thread
+	 */
+	int priority = TaskController.NORMAL;
+	
+	/**
+	 * Time the task is held back until before dispatch, or 0; set by the Master before it hands the task to 
+	 * its dispatch thread
+	 */
+	long runAt;
+	
+	/**
+	 * Hash of the task's affinity key on the worker nodes' ring, if it has one; set by the Master before it 
+	 * hands the task to its dispatch thread
+	 */
+	int affinity;
+	boolean affine;
+	
+	/**
+	 * Worker node the task was last delivered to; only touched by the Master's dispatch thread
+	 */
+	WorkerCredits.WorkerNode worker;
+	
+	/**
+	 * Time the task is due for redelivery since its last delivery, so that the timeouts of earlier deliveries
+	 * are passed over; only touched by the Master's dispatch thread
+	 */
+	long redeliverAt;
+	
+	/**
+	 * Time the task was first delivered, or 0; set by the Master's dispatch thread and read by the task sink 
+	 * to measure the task's latency
+	 */
+	volatile long deliveredAt;
+	
+	/**
+	 * Whether a speculative copy of the task was sent; only touched by the Master's dispatch thread
+	 */
+	boolean speculated;
+	
+	/**
+	 * Id of the task's submission record in the master's journal, or 0 if it was not journaled
+	 */
+	volatile long journalId;
+
+	public PendingTask(long requestId, long opCode, Message request, 
+			Message response, RpcCallback<Message> callback, long expiresAt) {
+		super(response, callback);
+		this.requestId = requestId;
+		this.opCode = opCode;
+		this.request = request;
+		this.expiresAt = expiresAt;
+	}
+}
@@ -0,0 +1,157 @@
+package taskqueue;
+
+import java.util.ArrayDeque;
+
+/**
+ * PriorityLanes is the backlog of the Master's tasks waiting for a worker node with credit, with one lane per
+ * priority and a smooth weighted round-robin deciding which lane the next task comes from: among the lanes 
+ * holding tasks, each is picked in proportion to its weight and the picks are interleaved rather than bunched,
+ * so urgent tasks overtake a bulk backlog without starving it. Not thread-safe, confined to the Master's
+ * dispatch thread
+ * 
+ * @author paulcao
+ *
+ */
+public class PriorityLanes {
+	
+	private final ArrayDeque<PendingTask>[] lanes;
+	
+	private volatile int[] weights;
+	
+	/**
+	 * Running scores of the weighted round-robin, the lane with the highest score goes next
+	 */
+	private final long[] scores;
+	
+	private int size;
+	
+	private long bytes;
+	
+	private long since;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param weights share of the picks of each lane while it holds tasks, from the most urgent lane to the least
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public PriorityLanes(int[] weights) {
+		lanes = (ArrayDeque<PendingTask>[]) new ArrayDeque[weights.length];
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new ArrayDeque<PendingTask>();
+		}
+		scores = new long[weights.length];
+		setWeights(weights);
+	}
+	
+	/**
+	 * @param weights share of the picks of each lane while it holds tasks, one per lane and all positive
+	 */
+	public void setWeights(int[] weights) {
+		if (weights.length != lanes.length) {
+			throw new IllegalArgumentException("expected " + lanes.length + " weights, got " + weights.length);
+		}
+		for (int weight : weights) {
+			if (weight < 1) {
+				throw new IllegalArgumentException("weights must be positive: " + weight);
+			}
+		}
+		this.weights = weights.clone();
+	}
+	
+	/**
+	 * Puts a task in the lane of its priority, the lowest lane taking the priorities beyond it
+	 * 
+	 * @param task the task
+	 * @param first whether the task goes before the others of its lane, e.g. because it is overdue
+	 */
+	public void add(PendingTask task, boolean first) {
+		if (size == 0) {
+			since = System.currentTimeMillis();
+		}
+		
+		ArrayDeque<PendingTask> lane = lanes[Math.min(task.priority, lanes.length - 1)];
+		if (first) {
+			lane.addFirst(task);
+		} else {
+			lane.addLast(task);
+		}
+		size++;
+		bytes += task.request.getSerializedSize();
+	}
+	
+	/**
+	 * @return the task that goes next, or null if the lanes are empty
+	 */
+	public PendingTask peek() {
+		int lane = next(weights);
+		return lane < 0 ? null : lanes[lane].peekFirst();
+	}
+	
+	/**
+	 * Takes the task that goes next, moving the weighted round-robin on
+	 * 
+	 * @return the task, or null if the lanes are empty
+	 */
+	public PendingTask poll() {
+		int[] weights = this.weights;
+		int lane = next(weights);
+		if (lane < 0)
+			return null;
+		
+		// every lane holding tasks gains its weight, and the picked lane gives up the total
+		long total = 0;
+		for (int i = 0; i < lanes.length; i++) {
+			if (!lanes[i].isEmpty()) {
+				scores[i] += weights[i];
+				total += weights[i];
+			}
+		}
+		scores[lane] -= total;
+		
+		PendingTask task = lanes[lane].pollFirst();
+		if (lanes[lane].isEmpty()) {
+			scores[lane] = 0;
+		}
+		size--;
+		bytes -= task.request.getSerializedSize();
+		return task;
+	}
+	
+	/**
+	 * @return the lane holding tasks with the highest score after gaining its weight, the most urgent on ties
+	 */
+	private int next(int[] weights) {
+		int next = -1;
+		long best = Long.MIN_VALUE;
+		for (int i = 0; i < lanes.length; i++) {
+			if (!lanes[i].isEmpty() && scores[i] + weights[i] > best) {
+				best = scores[i] + weights[i];
+				next = i;
+			}
+		}
+		return next;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return the serialized size of the tasks' arguments
+	 */
+	public long bytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return when the lanes last went from empty to holding tasks
+	 */
+	public long since() {
+		return since;
+	}
+}
@@ -0,0 +1,78 @@
+package taskqueue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcChannel;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * ShardedMaster spreads the tasks submitted through the generated service stubs over several Master shards
+ * of the same process, taking turns, so that submission, dispatch and the collection of results run on the
+ * threads of every shard; the shards share the worker nodes, which connect to each of them
+ *
+ * @author paulcao
+ *
+ */
+public class ShardedMaster implements RpcChannel {
+
+	private final Master[] shards;
+
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Constructor
+	 *
+	 * @param shards the Master shards, each with a shard of its own
+	 */
+	public ShardedMaster(Master... shards) {
+		if (shards.length == 0) {
+			throw new IllegalArgumentException("no Master shard");
+		}
+
+		boolean[] taken = new boolean[TaskProtocol.MAX_SHARDS];
+		for (Master shard : shards) {
+			if (taken[shard.getShard()]) {
+				throw new IllegalArgumentException("duplicate Master shard " + shard.getShard());
+			}
+			taken[shard.getShard()] = true;
+		}
+		this.shards = shards.clone();
+	}
+
+	/**
+	 * Submits a task to the next Master shard in turn
+	 *
+	 * @see Master#callMethod(MethodDescriptor, RpcController, Message, Message, RpcCallback)
+	 */
+	@Override
+	public void callMethod(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, Message response, RpcCallback<Message> done) {
+		shards[Math.floorMod(next.getAndIncrement(), shards.length)].callMethod(methodDescriptor, controller, request, response, done);
+	}
+
+	/**
+	 * @return the number of tasks awaiting their results across the shards
+	 */
+	public int getPendingTaskCount() {
+		int count = 0;
+		for (Master shard : shards) {
+			count += shard.getPendingTaskCount();
+		}
+		return count;
+	}
+
+	/**
+	 * @param shard index of the shard, in the order they were given
+	 * @return the Master shard
+	 */
+	public Master getShard(int shard) {
+		return shards[shard];
+	}
+
+	public int size() {
+		return shards.length;
+	}
+}
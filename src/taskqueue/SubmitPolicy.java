@@ -0,0 +1,25 @@
+package taskqueue;
+
+/**
+ * What submitting a task does while the Master already has its maximum number of tasks awaiting results
+ * 
+ * @author paulcao
+ *
+ */
+public enum SubmitPolicy {
+	
+	/**
+	 * Wait for a task to complete, however long it takes; delayed tasks are rejected straight away instead
+	 */
+	BLOCK,
+	
+	/**
+	 * Wait for a task to complete up to a timeout, then reject the task
+	 */
+	TIMEOUT,
+	
+	/**
+	 * Reject the task straight away
+	 */
+	REJECT
+}
@@ -0,0 +1,167 @@
+package taskqueue;
+
+import java.io.IOException;
+
+import org.zeromq.ZMQ;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+
+/**
+ * TaskBatchWriter coalesces tasks, or task results, into a single batch frame so that the per-message cost 
+ * of zeromq is paid once per batch rather than once per task. A task entry is the method op-code and the
+ * request id as fixed 8-byte values, the priority lane and the length-prefixed method arguments; a result entry is the 
+ * number of tasks it completes and their request ids followed by the length-prefixed result, which is a
+ * partial aggregate when the entry completes several tasks. Entries are serialized straight into a reusable array, 
+ * and an instance is not thread-safe and must be confined to whoever owns the socket
+ * 
+ * @author paulcao
+ *
+ */
+public class TaskBatchWriter {
+	
+	/**
+	 * Default maximum number of tasks per batch
+	 */
+	public static final int DEFAULT_MAX_TASKS = 64;
+	
+	/**
+	 * Default maximum size of a batch, exceeded only by a batch made of a single task
+	 */
+	public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+	private static final int INITIAL_CAPACITY = 4096;
+	
+	private byte[] buffer = new byte[INITIAL_CAPACITY];
+	
+	private int position;
+	
+	private int count;
+	
+	/**
+	 * Appends a task to the batch
+	 * 
+	 * @param opCode op-code of the service method
+	 * @param requestId request id of the task
+	 * @param priority priority lane of the task
+	 * @param request method arguments
+	 * @throws IOException if the task could not be encoded, the batch being left as it was
+	 */
+	public void addTask(long opCode, long requestId, int priority, Message request) throws IOException {
+		int start = position;
+		int size = request.getSerializedSize();
+		CodedOutputStream output = reserve(2 * Long.BYTES + CodedOutputStream.computeRawVarint32Size(priority) 
+				+ CodedOutputStream.computeRawVarint32Size(size) + size);
+		try {
+			output.writeFixed64NoTag(opCode);
+			output.writeFixed64NoTag(requestId);
+			output.writeRawVarint32(priority);
+			output.writeRawVarint32(size);
+			request.writeTo(output);
+			output.checkNoSpaceLeft();
+		} catch (IOException e) {
+			// drop the partly written entry
+			position = start;
+			throw e;
+		}
+		count++;
+	}
+	
+	/**
+	 * Appends a task result to the batch
+	 * 
+	 * @param requestId request id of the task
+	 * @param result task result
+	 * @throws IOException
+	 */
+	public void addResult(long requestId, Message result) throws IOException {
+		int size = result.getSerializedSize();
+		CodedOutputStream output = reserve(1 + Long.BYTES + CodedOutputStream.computeRawVarint32Size(size) + size);
+		output.writeRawVarint32(1);
+		output.writeFixed64NoTag(requestId);
+		output.writeRawVarint32(size);
+		result.writeTo(output);
+		output.checkNoSpaceLeft();
+		count++;
+	}
+	
+	/**
+	 * Appends the partial aggregate of several task results to the batch
+	 * 
+	 * @param requestIds request ids of the tasks whose results were merged
+	 * @param tasks number of request ids
+	 * @param aggregate partial aggregate of the task results
+	 * @throws IOException
+	 */
+	public void addAggregate(long[] requestIds, int tasks, Message aggregate) throws IOException {
+		int size = aggregate.getSerializedSize();
+		CodedOutputStream output = reserve(CodedOutputStream.computeRawVarint32Size(tasks) + tasks * Long.BYTES 
+				+ CodedOutputStream.computeRawVarint32Size(size) + size);
+		output.writeRawVarint32(tasks);
+		for (int i = 0; i < tasks; i++) {
+			output.writeFixed64NoTag(requestIds[i]);
+		}
+		output.writeRawVarint32(size);
+		aggregate.writeTo(output);
+		output.checkNoSpaceLeft();
+		count++;
+	}
+	
+	/**
+	 * Grows the buffer if needed and moves the position past the space of the next entry
+	 * 
+	 * @param length size of the next entry
+	 * @return a stream writing the next entry into its space
+	 */
+	private CodedOutputStream reserve(int length) {
+		if (position + length > buffer.length) {
+			byte[] grown = new byte[Math.max(position + length, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, position);
+			buffer = grown;
+		}
+		
+		CodedOutputStream output = CodedOutputStream.newInstance(buffer, position, length);
+		position += length;
+		return output;
+	}
+	
+	/**
+	 * Sends the batch as a single frame and starts a new batch
+	 * 
+	 * @param socket zeromq socket to send on
+	 * @param flags zeromq send flags
+	 * @return whether zeromq accepted the frame
+	 */
+	public boolean send(ZMQ.Socket socket, int flags) {
+		boolean sent = socket.send(buffer, 0, position, flags);
+		position = 0;
+		count = 0;
+		return sent;
+	}
+	
+	/**
+	 * Drops the batch, e.g. when it cannot be routed, and starts a new batch
+	 */
+	public void clear() {
+		position = 0;
+		count = 0;
+	}
+	
+	/**
+	 * @return the number of entries in the batch
+	 */
+	public int size() {
+		return count;
+	}
+	
+	/**
+	 * @return the size of the batch in bytes
+	 */
+	public int bytes() {
+		return position;
+	}
+	
+	public boolean isEmpty() {
+		return count == 0;
+	}
+}
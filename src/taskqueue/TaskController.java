@@ -0,0 +1,148 @@
+package taskqueue;
+
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+
+/**
+ * TaskController carries the submission options of a task through the generated service stubs, passed as
+ * the controller argument of the stub method (e.g., its priority, delay or affinity key); stubs called without 
+ * a controller submit their tasks with the default options. A controller is not thread-safe and records the
+ * failure of a rejected submission, which sticks until {@link #reset()}; it must not be shared between threads
+ * submitting concurrently, and may only be reused by the same thread after checking {@link #failed()} and 
+ * resetting it if the submission failed
+ * 
+ * @author paulcao
+ *
+ */
+public class TaskController implements RpcController {
+	
+	/**
+	 * Priorities of the lanes of the Master, from the most urgent to the least
+	 */
+	public static final int HIGH = 0;
+	public static final int NORMAL = 1;
+	public static final int LOW = 2;
+	
+	private int priority = NORMAL;
+	
+	private long delayMillis;
+	
+	private long runAtMillis;
+	
+	private String affinityKey;
+	
+	private String errorText;
+	
+	public TaskController() {
+	}
+	
+	/**
+	 * @param priority priority lane of the tasks, {@link #HIGH} being the most urgent
+	 */
+	public TaskController(int priority) {
+		setPriority(priority);
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * @param priority priority lane of the tasks, {@link #HIGH} being the most urgent; lanes beyond those of
+	 * the Master fall into its lowest priority lane
+	 */
+	public void setPriority(int priority) {
+		if (priority < 0) {
+			throw new IllegalArgumentException("priority must not be negative: " + priority);
+		}
+		this.priority = priority;
+	}
+	
+	public long getDelay() {
+		return delayMillis;
+	}
+	
+	/**
+	 * @param delayMillis how long after their submission the tasks are held back before being dispatched,
+	 * or 0 to dispatch them right away
+	 */
+	public void setDelay(long delayMillis) {
+		if (delayMillis < 0) {
+			throw new IllegalArgumentException("delay must not be negative: " + delayMillis);
+		}
+		this.delayMillis = delayMillis;
+		this.runAtMillis = 0;
+	}
+	
+	public long getRunAt() {
+		return runAtMillis;
+	}
+	
+	/**
+	 * @param runAtMillis time the tasks are held back until before being dispatched, in milliseconds since
+	 * the epoch, or 0 to dispatch them right away
+	 */
+	public void setRunAt(long runAtMillis) {
+		this.runAtMillis = runAtMillis;
+		this.delayMillis = 0;
+	}
+	
+	public String getAffinityKey() {
+		return affinityKey;
+	}
+	
+	/**
+	 * @param affinityKey key of the data the tasks touch, tasks of the same key being sent to the same worker 
+	 * node while it has credit; null to fall back to the Master's affinity key extractor, if any
+	 */
+	public void setAffinityKey(String affinityKey) {
+		this.affinityKey = affinityKey;
+	}
+	
+	/**
+	 * @param nowMillis time of the submission
+	 * @return the time a task submitted now is held back until
+	 */
+	long runAt(long nowMillis) {
+		return runAtMillis > 0 ? runAtMillis : nowMillis + delayMillis;
+	}
+	
+	@Override
+	public void reset() {
+		priority = NORMAL;
+		delayMillis = 0;
+		runAtMillis = 0;
+		affinityKey = null;
+		errorText = null;
+	}
+
+	@Override
+	public boolean failed() {
+		return errorText != null;
+	}
+
+	@Override
+	public String errorText() {
+		return errorText;
+	}
+
+	@Override
+	public void startCancel() {
+		// tasks cannot be cancelled once submitted
+	}
+
+	@Override
+	public void setFailed(String reason) {
+		this.errorText = reason;
+	}
+
+	@Override
+	public boolean isCanceled() {
+		return false;
+	}
+
+	@Override
+	public void notifyOnCancel(RpcCallback<Object> callback) {
+		// tasks cannot be cancelled once submitted
+	}
+}
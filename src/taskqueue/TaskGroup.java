@@ -0,0 +1,190 @@
+package taskqueue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.RpcCallback;
+import com.google.protobuf.RpcController;
+import com.google.protobuf.Descriptors.MethodDescriptor;
+
+/**
+ * TaskGroup tracks the completion of a group of tasks submitted to the Master, e.g. the tasks of a batch job,
+ * so that a driver can report progress and wait for all of them without spinning. Tasks join the group when 
+ * submitted through it, or by wrapping their stub callback with {@link #track(RpcCallback)}; a task counts as 
+ * completed once its callback has run, and as failed if it ran with null (i.e., the task was rejected or 
+ * expired). Closing the group stops it from taking more tasks, and the group is drained once closed and all 
+ * its tasks completed
+ * 
+ * @author paulcao
+ *
+ */
+public class TaskGroup implements AutoCloseable {
+	
+	private final Master master;
+	
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	
+	/**
+	 * Tasks submitted and not completed yet; waiters are woken up when it drops to 0
+	 */
+	private final AtomicLong outstanding = new AtomicLong();
+	
+	private volatile boolean closed;
+	
+	private final CompletableFuture<Void> drained = new CompletableFuture<Void>();
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param master the master the tasks of the group are submitted to
+	 */
+	public TaskGroup(Master master) {
+		this.master = master;
+	}
+	
+	/**
+	 * Wraps the callback of a task submitted through a stub so that the task joins the group; to be called
+	 * once per task, just before submitting it
+	 * 
+	 * @param callback the task's callback, or null
+	 * @return the callback to pass to the stub
+	 * @throws IllegalStateException if the group is closed
+	 */
+	public <T extends Message> RpcCallback<T> track(final RpcCallback<T> callback) {
+		outstanding.incrementAndGet();
+		if (closed) {
+			release();
+			throw new IllegalStateException("Task group is closed");
+		}
+		submitted.incrementAndGet();
+		
+		return new RpcCallback<T>() {
+			@Override
+			public void run(T result) {
+				try {
+					if (callback != null) {
+						callback.run(result);
+					}
+				} finally {
+					completed(result == null);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Submits a task in the group
+	 * 
+	 * @param methodDescriptor service and method name description
+	 * @param controller protobuf controller object, a TaskController to set the task's options, or null
+	 * @param request protobuf request object
+	 * @param responsePrototype protobuf response prototype
+	 * @return a future of the task's result
+	 * @throws IllegalStateException if the group is closed
+	 */
+	public <T extends Message> CompletableFuture<T> submit(MethodDescriptor methodDescriptor, RpcController controller,
+			Message request, T responsePrototype) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		master.callMethod(methodDescriptor, controller, request, responsePrototype, 
+				track(Master.completing(future)));
+		return future;
+	}
+	
+	private void completed(boolean failure) {
+		if (failure) {
+			failed.incrementAndGet();
+		}
+		completed.incrementAndGet();
+		release();
+	}
+	
+	private void release() {
+		if (outstanding.decrementAndGet() == 0) {
+			synchronized (this) {
+				notifyAll();
+			}
+			if (closed) {
+				drained.complete(null);
+			}
+		}
+	}
+	
+	/**
+	 * Waits until every task submitted in the group so far has completed
+	 * 
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitAll() throws InterruptedException {
+		while (outstanding.get() > 0) {
+			wait();
+		}
+	}
+	
+	/**
+	 * Waits up to a timeout until every task submitted in the group so far has completed
+	 * 
+	 * @param timeout the timeout
+	 * @param unit unit of the timeout
+	 * @return whether all the tasks completed in time
+	 * @throws InterruptedException
+	 */
+	public synchronized boolean awaitAll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (outstanding.get() > 0) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				return false;
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops the group from taking more tasks; the group is drained once its tasks have completed
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (outstanding.get() == 0) {
+			drained.complete(null);
+		}
+	}
+	
+	/**
+	 * @return a future completed once the group is closed and all its tasks have completed
+	 */
+	public CompletableFuture<Void> whenDrained() {
+		return drained;
+	}
+	
+	public boolean isClosed() {
+		return closed;
+	}
+	
+	public long getSubmitted() {
+		return submitted.get();
+	}
+	
+	/**
+	 * @return the number of completed tasks, failed ones included
+	 */
+	public long getCompleted() {
+		return completed.get();
+	}
+	
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	/**
+	 * @return the share of the submitted tasks completed so far, 1 if none was submitted
+	 */
+	public double getProgress() {
+		long submitted = this.submitted.get();
+		return submitted == 0 ? 1.0 : (double) completed.get() / submitted;
+	}
+}
@@ -0,0 +1,486 @@
+package taskqueue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.google.protobuf.Message;
+
+/**
+ * TaskJournal is an append-only write-ahead journal of the tasks submitted to the Master and of their
+ * completions, so that the tasks still outstanding when the master process dies can be submitted again on
+ * restart. Records are appended to memory-mapped segment files: an append is a copy into the page cache
+ * under a short lock, which survives the process dying, while a background thread forces the dirty pages
+ * of all the appends since its last pass to disk at a fixed interval (group commit), so that the cost of
+ * fsync is shared by every append in between. Forces run outside of the appenders' lock, which only notes
+ * which segments are dirty, so that appending never waits for the disk. Segments are rolled over when full
+ * and deleted once every task submitted in them and in the segments before them is completed, as they may
+ * hold the completions of the earlier segments' tasks.
+ *
+ * A record is its body length and CRC32 followed by the body: the record type and the journal id of the
+ * task, then for submissions the method op-code and the serialized arguments. A zero length marks the end
+ * of a segment's records, and a record failing its checksum (e.g., torn by a power loss) ends recovery of
+ * its segment
+ *
+ * @author paulcao
+ *
+ */
+public class TaskJournal implements Closeable {
+
+	/**
+	 * Default size of a segment file
+	 */
+	public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+	/**
+	 * Default time between two forces of the appended records to disk
+	 */
+	public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+
+	private static final byte SUBMITTED = 1;
+	private static final byte COMPLETED = 2;
+
+	private static final int HEADER_BYTES = 2 * Integer.BYTES;
+	private static final int COMPLETED_BODY_BYTES = 1 + Long.BYTES;
+	private static final int SUBMITTED_BODY_BYTES = 1 + 2 * Long.BYTES;
+
+	/**
+	 * A task found outstanding in the journal on start
+	 */
+	public static class JournaledTask {
+		public final long journalId;
+		public final long opCode;
+		public final byte[] request;
+
+		JournaledTask(long journalId, long opCode, byte[] request) {
+			this.journalId = journalId;
+			this.opCode = opCode;
+			this.request = request;
+		}
+	}
+
+	/**
+	 * A segment file and the range and number of outstanding tasks submitted in it
+	 */
+	private static class Segment {
+		final File file;
+		final long sequence;
+		long firstId = Long.MAX_VALUE;
+		long outstanding;
+
+		Segment(File file, long sequence) {
+			this.file = file;
+			this.sequence = sequence;
+		}
+	}
+
+	private final File directory;
+
+	private final int segmentBytes;
+
+	private final long syncIntervalMillis;
+
+	/**
+	 * Segments holding outstanding tasks, in order, the last one being appended to
+	 */
+	private final List<Segment> segments = new ArrayList<Segment>();
+
+	private Segment current;
+
+	private MappedByteBuffer buffer;
+
+	/**
+	 * Segments written before start, holding the tasks to recover until they are discarded
+	 */
+	private final List<Segment> recoveredSegments = new ArrayList<Segment>();
+
+	private final List<JournaledTask> recoveredTasks;
+
+	private final CRC32 crc = new CRC32();
+
+	private long lastId;
+
+	/**
+	 * Whether records were appended to the current segment since the last force to disk
+	 */
+	private boolean dirty;
+
+	/**
+	 * Segments rolled over since the last force to disk, still to be forced
+	 */
+	private final List<MappedByteBuffer> unforced = new ArrayList<MappedByteBuffer>();
+
+	/**
+	 * Lock serializing the forces to disk, held without the appenders' lock
+	 */
+	private final Object syncLock = new Object();
+
+	private boolean closed;
+
+	private final Thread syncThread;
+
+	/**
+	 * Constructor; opens the journal in a directory, recovering the outstanding tasks of its previous segments
+	 *
+	 * @param directory directory of the segment files, created if needed
+	 * @throws IOException
+	 */
+	public TaskJournal(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_SYNC_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Constructor; opens the journal in a directory, recovering the outstanding tasks of its previous segments
+	 *
+	 * @param directory directory of the segment files, created if needed
+	 * @param segmentBytes size of a segment file, which bounds the size of a task's arguments
+	 * @param syncIntervalMillis time between two forces of the appended records to disk, or 0 to force every
+	 * append before it returns
+	 * @throws IOException
+	 */
+	public TaskJournal(File directory, int segmentBytes, long syncIntervalMillis) throws IOException {
+		if (segmentBytes < 1024 || syncIntervalMillis < 0) {
+			throw new IllegalArgumentException("invalid segment size " + segmentBytes + " or sync interval " + syncIntervalMillis);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.recoveredTasks = recover();
+
+		long nextSequence = recoveredSegments.isEmpty() ? 0 : recoveredSegments.get(recoveredSegments.size() - 1).sequence + 1;
+		roll(nextSequence);
+
+		if (syncIntervalMillis > 0) {
+			Runnable runnable = new Runnable() {
+				@Override
+				public void run() {
+					syncPeriodically();
+				}
+			};
+
+			syncThread = new Thread(runnable, "task-journal-sync");
+			syncThread.setDaemon(true);
+			syncThread.start();
+		} else {
+			syncThread = null;
+		}
+	}
+
+	/**
+	 * Appends the submission of a task
+	 *
+	 * @param opCode op-code of the task method
+	 * @param request the task arguments
+	 * @return the journal id of the task, to pass on its completion
+	 */
+	public long submitted(long opCode, Message request) {
+		// serialize outside of the lock, appenders only contend on the copy
+		byte[] requestBytes = request.toByteArray();
+
+		long journalId;
+		synchronized (this) {
+			journalId = ++lastId;
+
+			ensureRemaining(HEADER_BYTES + SUBMITTED_BODY_BYTES + requestBytes.length);
+			int start = buffer.position();
+			buffer.position(start + HEADER_BYTES);
+			buffer.put(SUBMITTED).putLong(journalId).putLong(opCode).put(requestBytes);
+			seal(start);
+
+			if (current.firstId == Long.MAX_VALUE) {
+				current.firstId = journalId;
+			}
+			current.outstanding++;
+			dirty = true;
+		}
+
+		if (syncIntervalMillis == 0) {
+			sync();
+		}
+		return journalId;
+	}
+
+	/**
+	 * Appends the completion of a task, deleting the segments left without outstanding tasks
+	 *
+	 * @param journalId the journal id of the task
+	 */
+	public void completed(long journalId) {
+		synchronized (this) {
+			ensureRemaining(HEADER_BYTES + COMPLETED_BODY_BYTES);
+			int start = buffer.position();
+			buffer.position(start + HEADER_BYTES);
+			buffer.put(COMPLETED).putLong(journalId);
+			seal(start);
+
+			// the segments are ordered by the journal ids submitted in them
+			for (int i = segments.size() - 1; i >= 0; i--) {
+				Segment segment = segments.get(i);
+				if (journalId >= segment.firstId) {
+					segment.outstanding--;
+					break;
+				}
+			}
+			deleteCompleted();
+			dirty = true;
+		}
+
+		if (syncIntervalMillis == 0) {
+			sync();
+		}
+	}
+
+	/**
+	 * @return the tasks submitted but not completed before start, in submission order
+	 */
+	public List<JournaledTask> recoveredTasks() {
+		return recoveredTasks;
+	}
+
+	/**
+	 * Deletes the segments written before start, once their outstanding tasks have been submitted again
+	 * or given up on
+	 */
+	public void discardRecovered() {
+		sync();
+		synchronized (this) {
+			for (Segment segment : recoveredSegments) {
+				delete(segment);
+			}
+			recoveredSegments.clear();
+			recoveredTasks.clear();
+		}
+	}
+
+	/**
+	 * Forces the records appended so far to disk; only notes the dirty segments under the appenders' lock,
+	 * the forces running under a lock of their own so that appends go on in the meantime
+	 */
+	public void sync() {
+		synchronized (syncLock) {
+			List<MappedByteBuffer> dirtySegments;
+			synchronized (this) {
+				dirtySegments = new ArrayList<MappedByteBuffer>(unforced);
+				unforced.clear();
+				if (dirty && buffer != null) {
+					dirtySegments.add(buffer);
+				}
+				dirty = false;
+			}
+
+			for (MappedByteBuffer segment : dirtySegments) {
+				segment.force();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+		}
+
+		// no record is appended once closed, force the last ones before letting go of the segment
+		sync();
+		synchronized (this) {
+			buffer = null;
+		}
+		if (syncThread != null) {
+			syncThread.interrupt();
+		}
+	}
+
+	/**
+	 * Writes the length and checksum of the record whose body was just put after its header
+	 *
+	 * @param start position of the record
+	 */
+	private void seal(int start) {
+		int end = buffer.position();
+		int length = end - start - HEADER_BYTES;
+
+		ByteBuffer body = buffer.duplicate();
+		body.position(start + HEADER_BYTES).limit(end);
+		crc.reset();
+		crc.update(body);
+
+		// the length goes last, so that a record only shows up once complete
+		buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+		buffer.putInt(start, length);
+	}
+
+	/**
+	 * Rolls over to a new segment if the current one cannot hold a record
+	 *
+	 * @param recordBytes size of the record
+	 */
+	private void ensureRemaining(int recordBytes) {
+		if (closed) {
+			throw new IllegalStateException("Journal is closed");
+		}
+		if (recordBytes + Integer.BYTES > segmentBytes) {
+			throw new IllegalArgumentException("Record of " + recordBytes + " bytes exceeds the journal segment size");
+		}
+
+		// keep room for the zero length marking the end of the records
+		if (buffer.remaining() < recordBytes + Integer.BYTES) {
+			// the full segment is forced by the next sync, outside of the lock
+			if (dirty) {
+				unforced.add(buffer);
+				dirty = false;
+			}
+			try {
+				roll(current.sequence + 1);
+			} catch (IOException e) {
+				throw new IllegalStateException("Cannot roll journal segment", e);
+			}
+			deleteCompleted();
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments as long as they have no outstanding tasks; a segment is kept while an older
+	 * one is, since its completion records still matter to the older segment's tasks
+	 */
+	private void deleteCompleted() {
+		while (segments.size() > 1 && segments.get(0).outstanding == 0) {
+			delete(segments.remove(0));
+		}
+	}
+
+	/**
+	 * Creates and maps a new segment file
+	 *
+	 * @param sequence sequence number of the segment
+	 * @throws IOException
+	 */
+	private void roll(long sequence) throws IOException {
+		File file = new File(directory, String.format("journal-%016d.log", sequence));
+
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(segmentBytes);
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+		}
+
+		current = new Segment(file, sequence);
+		segments.add(current);
+	}
+
+	private void delete(Segment segment) {
+		if (!segment.file.delete()) {
+			new IOException("Cannot delete journal segment " + segment.file).printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the segments left by a previous run
+	 *
+	 * @return the outstanding tasks, in submission order
+	 * @throws IOException
+	 */
+	private List<JournaledTask> recover() throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list journal directory " + directory);
+		}
+		Arrays.sort(files);
+
+		Map<Long, JournaledTask> outstanding = new LinkedHashMap<Long, JournaledTask>();
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.startsWith("journal-") || !name.endsWith(".log"))
+				continue;
+
+			long sequence = Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length()));
+			recoveredSegments.add(new Segment(file, sequence));
+			read(file, outstanding);
+		}
+
+		return new ArrayList<JournaledTask>(outstanding.values());
+	}
+
+	/**
+	 * Reads the records of a segment, up to its end or its first torn record
+	 *
+	 * @param file the segment file
+	 * @param outstanding outstanding tasks by journal id, updated with the records
+	 * @throws IOException
+	 */
+	private void read(File file, Map<Long, JournaledTask> outstanding) throws IOException {
+		MappedByteBuffer segment;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+		}
+
+		while (segment.remaining() >= HEADER_BYTES) {
+			int length = segment.getInt();
+			int checksum = segment.getInt();
+			if (length < COMPLETED_BODY_BYTES || length > segment.remaining())
+				break;
+
+			int start = segment.position();
+			ByteBuffer body = segment.duplicate();
+			body.limit(start + length);
+			crc.reset();
+			crc.update(body);
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			byte type = segment.get();
+			long journalId = segment.getLong();
+			lastId = Math.max(lastId, journalId);
+
+			if (type == SUBMITTED && length >= SUBMITTED_BODY_BYTES) {
+				long opCode = segment.getLong();
+				byte[] request = new byte[length - SUBMITTED_BODY_BYTES];
+				segment.get(request);
+				outstanding.put(journalId, new JournaledTask(journalId, opCode, request));
+			} else if (type == COMPLETED) {
+				outstanding.remove(journalId);
+			}
+			segment.position(start + length);
+		}
+	}
+
+	/**
+	 * Sync thread loop, forcing the records appended since its last pass to disk
+	 */
+	private void syncPeriodically() {
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Thread.sleep(syncIntervalMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			synchronized (this) {
+				if (closed)
+					return;
+			}
+			sync();
+		}
+	}
+
+	/**
+	 * @return the number of segment files in use, including those written before start
+	 */
+	public synchronized int segmentCount() {
+		return segments.size() + recoveredSegments.size();
+	}
+}
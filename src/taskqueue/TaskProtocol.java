@@ -0,0 +1,88 @@
+package taskqueue;
+
+/**
+ * Control messages exchanged by the Master and the worker nodes over the task socket, next to the tasks the 
+ * Master sends them; a control message is a one-byte command frame followed by an argument frame, an 8-byte
+ * count unless stated otherwise
+ * 
+ * @author paulcao
+ *
+ */
+public final class TaskProtocol {
+
+	/**
+	 * Grants the Master as many more task credits as the argument, i.e. the number of tasks the worker node 
+	 * is ready to take on; sent with the prefetch count on start and with one credit per result afterwards
+	 */
+	public static final byte READY = 1;
+	
+	/**
+	 * Sent by the Master to a busy worker node while others sit idle, asking it to give back up to as many 
+	 * tasks as the argument that are still waiting in its local queue
+	 */
+	public static final byte STEAL = 2;
+	
+	/**
+	 * Gives the Master back tasks taken off the worker node's local queue, along with their credits; the 
+	 * argument frame holds the 8-byte request ids of the tasks, none if the worker node answers STEAL with 
+	 * no task waiting
+	 */
+	public static final byte RETURNED = 3;
+	
+	/**
+	 * Sent by a draining worker node to tell the Master it is leaving, so that it is sent no more tasks nor
+	 * credited with any; the Master echoes it back once it has stopped routing tasks to the worker node, so 
+	 * that no task follows the echo
+	 */
+	public static final byte LEAVING = 4;
+	
+	/**
+	 * Request ids carry the shard of the Master that issued them in their top bits below the sign bit, so
+	 * that the Master shards sharing worker nodes issue disjoint ids and the worker nodes can send every 
+	 * result to its shard's task sink
+	 */
+	public static final int SHARD_BITS = 8;
+	public static final int MAX_SHARDS = 1 << SHARD_BITS;
+	private static final int SHARD_SHIFT = Long.SIZE - 1 - SHARD_BITS;
+	
+	static final byte[] READY_FRAME = { READY };
+	static final byte[] STEAL_FRAME = { STEAL };
+	static final byte[] RETURNED_FRAME = { RETURNED };
+	static final byte[] LEAVING_FRAME = { LEAVING };
+
+	private TaskProtocol() {
+	}
+	
+	/**
+	 * @param command the command of a control message
+	 * @param argumentFrame the argument frame of the control message
+	 * @return whether the argument frame can be decoded for the command, i.e. holds an 8-byte count or, for 
+	 * {@link #RETURNED}, whole 8-byte request ids; unknown commands are left to the receiver to ignore
+	 */
+	public static boolean isWellFormed(byte command, byte[] argumentFrame) {
+		if (command == RETURNED)
+			return argumentFrame.length % Long.BYTES == 0;
+		if (command == READY || command == STEAL || command == LEAVING)
+			return argumentFrame.length >= Long.BYTES;
+		return true;
+	}
+	
+	/**
+	 * @param shard shard of a Master, from 0 to {@link #MAX_SHARDS} excluded
+	 * @return the request id the shard's ids start after
+	 */
+	public static long firstRequestId(int shard) {
+		if (shard < 0 || shard >= MAX_SHARDS) {
+			throw new IllegalArgumentException("shard out of range: " + shard);
+		}
+		return (long) shard << SHARD_SHIFT;
+	}
+	
+	/**
+	 * @param requestId a request id
+	 * @return the shard of the Master that issued it
+	 */
+	public static int shardOf(long requestId) {
+		return (int) (requestId >>> SHARD_SHIFT);
+	}
+}
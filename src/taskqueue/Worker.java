@@ -1,34 +1,269 @@
 package taskqueue;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.zeromq.ZMQ;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.Message;
 import com.google.protobuf.RpcCallback;
-import com.google.protobuf.Service;
 import com.google.protobuf.Descriptors.MethodDescriptor;
 
+import base.FrameBuffer;
 import base.Listener;
-import base.RequestMessage;
+import base.OpCodeTable;
+import base.Signal;
+import utils.LongHashTable;
+import utils.Utils;
 
 /**
  * Worker node implementation of the master-worker task queue, responsible for listening for
  * assigned work from the master node, calling the protobuf service implementation that do the work
- * encode the work result and forward it to the master task result sink/collector
+ * encode the work result and forward it to the master task result sink/collector. A single worker node
+ * can run several tasks at once on a pool of task threads, its listener thread still being the only one 
+ * touching the sockets, and can be shared by several Master shards, connecting to each of them
  * 
  * @author paulcao
  *
  */
 public class Worker extends Listener {
 
+	/**
+	 * Socket forwarding task results to the task sink, owned by the listener thread like the listening socket
+	 */
 	private ZMQ.Socket senderSocket;
 	
-	private Boolean senderSocketBlock = new Boolean(false);
+	/**
+	 * A task result queued for the listener thread
+	 */
+	private static class TaskResult {
+		final long requestId;
+		final long opCode;
+		final Message result;
+		
+		TaskResult(long requestId, long opCode, Message result) {
+			this.requestId = requestId;
+			this.opCode = opCode;
+			this.result = result;
+		}
+	}
+	
+	/**
+	 * A task received but not yet dispatched, pointing at its arguments in the batch frame
+	 */
+	private static class ReceivedTask {
+		final long opCode;
+		final long requestId;
+		final int priority;
+		final byte[] frame;
+		final int offset;
+		final int length;
+		
+		ReceivedTask(long opCode, long requestId, int priority, byte[] frame, int offset, int length) {
+			this.opCode = opCode;
+			this.requestId = requestId;
+			this.priority = priority;
+			this.frame = frame;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	private static final Comparator<ReceivedTask> BY_PRIORITY = new Comparator<ReceivedTask>() {
+		@Override
+		public int compare(ReceivedTask a, ReceivedTask b) {
+			return Integer.compare(a.priority, b.priority);
+		}
+	};
+	
+	/**
+	 * A task waiting in the local queue for a task thread, the most urgent first and in order of arrival otherwise
+	 */
+	private static class QueuedTask implements Runnable, Comparable<QueuedTask> {
+		final int priority;
+		final long requestId;
+		final long sequence;
+		final Runnable command;
+		
+		QueuedTask(int priority, long requestId, long sequence, Runnable command) {
+			this.priority = priority;
+			this.requestId = requestId;
+			this.sequence = sequence;
+			this.command = command;
+		}
+		
+		@Override
+		public void run() {
+			command.run();
+		}
+		
+		@Override
+		public int compareTo(QueuedTask other) {
+			return priority != other.priority ? Integer.compare(priority, other.priority) 
+					: Long.compare(sequence, other.sequence);
+		}
+	}
+	
+	/**
+	 * Pool of task threads running the received tasks, or null if they run on the listener thread
+	 */
+	private ThreadPoolExecutor taskPool;
+	
+	private final AtomicLong queuedSequence = new AtomicLong();
+	
+	/**
+	 * Tasks received in the current poll, dispatched once every queued batch is read; confined to the listener thread
+	 */
+	private final List<ReceivedTask> received = new ArrayList<ReceivedTask>();
+	
+	/**
+	 * The partial aggregate of the results of a combined task method
+	 */
+	private static class Aggregate {
+		final Combiner combiner;
+		final long[] requestIds;
+		final long closesAt;
+		Message value;
+		int tasks;
+		
+		Aggregate(Combiner combiner, int maxTasks, long closesAt) {
+			this.combiner = combiner;
+			this.requestIds = new long[maxTasks];
+			this.closesAt = closesAt;
+		}
+	}
 	
+	/**
+	 * Connection to a Master shard: the socket the shard's tasks come in on and credits go out on, and the 
+	 * socket forwarding the results of its tasks to its task sink; confined to the listener thread
+	 */
+	private static class ShardConnection {
+		final ZMQ.Socket taskSocket;
+		final ZMQ.Socket sinkSocket;
+		
+		/**
+		 * The batch of task results being sent
+		 */
+		final TaskBatchWriter resultBatch = new TaskBatchWriter();
+		
+		/**
+		 * Open partial aggregates, by op-code
+		 */
+		final Map<Long, Aggregate> aggregates = new HashMap<Long, Aggregate>();
+		
+		/**
+		 * Credits of the tasks done since they were last returned
+		 */
+		int credits;
+		
+		/**
+		 * Whether the Master shard echoed the worker node's leaving, no more tasks coming from it
+		 */
+		boolean left;
+		
+		ShardConnection(ZMQ.Socket taskSocket, ZMQ.Socket sinkSocket) {
+			this.taskSocket = taskSocket;
+			this.sinkSocket = sinkSocket;
+		}
+	}
+	
+	/**
+	 * Connection to the Master given on construction, which also takes the results of the tasks of shards 
+	 * not added
+	 */
+	private ShardConnection primary;
+	
+	/**
+	 * Connections to the Master shards added, by shard; only changed before the worker node is started
+	 */
+	private ShardConnection[] shards = new ShardConnection[0];
+	
+	/**
+	 * Every connection, the primary one first
+	 */
+	private final List<ShardConnection> connections = new ArrayList<ShardConnection>();
+	
+	/**
+	 * Task results queued by the callbacks on any thread, sent to the task sink in batches by the listener thread
+	 */
+	private final Queue<TaskResult> results = new ConcurrentLinkedQueue<TaskResult>();
+	
+	/**
+	 * Wakes up the listener thread when task results are queued
+	 */
+	private final Signal resultsQueued = new Signal();
+	
+	/**
+	 * Default time and number of task results merged into a partial aggregate before it is forwarded
+	 */
+	public static final long DEFAULT_COMBINE_WINDOW_MILLIS = 100;
+	public static final int DEFAULT_COMBINE_MAX_TASKS = 1024;
+	
+	/**
+	 * Combiners of the associative task methods, by op-code; immutable and replaced wholesale on registration
+	 */
+	private volatile LongHashTable<Combiner> combiners = LongHashTable.empty();
+	
+	protected volatile long combineWindowMillis = DEFAULT_COMBINE_WINDOW_MILLIS;
+	protected volatile int combineMaxTasks = DEFAULT_COMBINE_MAX_TASKS;
+	
+	/**
+	 * Whether the worker node is draining, set by any thread
+	 */
+	private volatile boolean draining;
+	
+	/**
+	 * Tasks dispatched whose results are not queued yet; confined to the listener thread
+	 */
+	private int outstanding;
+	
+	/**
+	 * Released once the worker node is drained
+	 */
+	private final CountDownLatch drained = new CountDownLatch(1);
+	
+	/**
+	 * Default number of tasks a worker node is ready to take on at once
+	 */
+	public static final int DEFAULT_PREFETCH = 8;
+	
+	/**
+	 * Number of tasks the worker node announces it is ready to take on at once, including those being worked on,
+	 * split among the Master shards it is connected to
+	 */
+	protected final int prefetch;
+	
+	/**
+	 * Routing identity of the worker node on every Master shard, placing it on their consistent-hash rings
+	 */
+	private final byte[] identity;
+	
+	/**
+	 * Number of worker nodes created in the process, telling apart their default identities
+	 */
+	private static final AtomicInteger instances = new AtomicInteger();
+
 	/**
 	 * Constructor
 	 * 
@@ -40,12 +275,108 @@ public class Worker extends Listener {
 	 */
 	public Worker(String host, int port, 
 			String senderHost, int senderPort, int io_threads) {
+		this(host, port, senderHost, senderPort, io_threads, DEFAULT_PREFETCH);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param host master hostname
+	 * @param port master host port 
+	 * @param senderHost task sink hostname
+	 * @param senderPort task sink port 
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param prefetch number of tasks the worker node is ready to take on at once; 1 spreads uneven tasks 
+	 * best, higher counts hide the round trip to the master
+	 */
+	public Worker(String host, int port, 
+			String senderHost, int senderPort, int io_threads, int prefetch) {
+		this(host, port, senderHost, senderPort, io_threads, prefetch, 1);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param host master hostname
+	 * @param port master host port 
+	 * @param senderHost task sink hostname
+	 * @param senderPort task sink port 
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param prefetch number of tasks the worker node is ready to take on at once, including those running; at 
+	 * least the concurrency so that no task thread sits idle
+	 * @param concurrency number of tasks run at once on a pool of task threads, or 1 to run them on the 
+	 * listener thread (or the dispatch executor, if set)
+	 */
+	public Worker(String host, int port, 
+			String senderHost, int senderPort, int io_threads, int prefetch, int concurrency) {
+		this(host, port, senderHost, senderPort, io_threads, prefetch, concurrency, defaultIdentity());
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param host master hostname
+	 * @param port master host port 
+	 * @param senderHost task sink hostname
+	 * @param senderPort task sink port 
+	 * @param io_threads number of threads dedicated to zmq sockets
+	 * @param prefetch number of tasks the worker node is ready to take on at once, including those running; at 
+	 * least the concurrency so that no task thread sits idle
+	 * @param concurrency number of tasks run at once on a pool of task threads, or 1 to run them on the 
+	 * listener thread (or the dispatch executor, if set)
+	 * @param identity routing identity of the worker node, unique among the worker nodes of a Master; a fixed 
+	 * one keeps the tasks with an affinity key on the worker node across restarts
+	 */
+	public Worker(String host, int port, 
+			String senderHost, int senderPort, int io_threads, int prefetch, int concurrency, String identity) {
 		// initialize the listener thread to listen to tasks
 		super(host, port, io_threads);
 		
+		if (prefetch < 1 || concurrency < 1) {
+			throw new IllegalArgumentException("invalid prefetch " + prefetch + " or concurrency " + concurrency);
+		}
+		this.prefetch = Math.max(prefetch, concurrency);
+		
+		// zeromq takes identities of 1 to 255 bytes, those starting with a zero byte being reserved
+		this.identity = identity.getBytes(StandardCharsets.UTF_8);
+		if (this.identity.length == 0 || this.identity.length > 255 || this.identity[0] == 0) {
+			throw new IllegalArgumentException("invalid identity " + identity);
+		}
+		zmqSocket.setIdentity(this.identity);
+		zmqSocket.connect("tcp://" + host + ":" + port);
+
+		if (concurrency > 1) {
+			initializeTaskPool(concurrency);
+		}
+		
 		// initialize the task sink thread to forward the task results
 		String senderAddress = "tcp://" + senderHost + ":" + senderPort;
 		initializeSenderSocket(senderAddress);
+		
+		primary = new ShardConnection(zmqSocket, senderSocket);
+		connections.add(primary);
+	}
+	
+	/**
+	 * Starts the task threads, taking the received tasks from a local queue ordered by priority; the queue
+	 * never holds more than the prefetch count, as the master sends no more tasks than credits
+	 * 
+	 * @param concurrency number of task threads
+	 */
+	protected void initializeTaskPool(int concurrency) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "worker-task-" + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		
+		taskPool = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS, 
+				new PriorityBlockingQueue<Runnable>(), threadFactory);
 	}
 	
 	protected void initializeSenderSocket(String senderAddress) {
@@ -53,10 +384,112 @@ public class Worker extends Listener {
 		senderSocket.connect(senderAddress);
 	}
 	
+	/**
+	 * @return a routing identity made of the host name and the process id, numbered past the first worker node
+	 * of the process
+	 */
+	private static String defaultIdentity() {
+		// the runtime name is pid@host on the common JVMs
+		String runtime = ManagementFactory.getRuntimeMXBean().getName();
+		int at = runtime.indexOf('@');
+		String identity = at < 0 ? runtime : runtime.substring(at + 1) + ":" + runtime.substring(0, at);
+		
+		int instance = instances.getAndIncrement();
+		return instance == 0 ? identity : identity + ":" + instance;
+	}
+	
 	@Override
 	protected void initializeSocket(String address) {
-		zmqSocket = zmqContext.socket(ZMQ.PULL);	
-		zmqSocket.connect(address);
+		// connected once the identity is set
+		zmqSocket = zmqContext.socket(ZMQ.DEALER);	
+	}
+	
+	/**
+	 * Connects the worker node to another Master shard sharing it; called before the worker node is started. 
+	 * The worker node takes tasks from every shard, splitting its prefetch count among them, and sends the result
+	 * of a task to the task sink of the shard encoded in its request id
+	 * 
+	 * @param shard shard of the Master
+	 * @param host master hostname
+	 * @param port master host port
+	 * @param senderHost task sink hostname of the shard
+	 * @param senderPort task sink port of the shard
+	 * @see Master#Master(String, int, String, int, int, int, long, int)
+	 */
+	public void addShard(int shard, String host, int port, String senderHost, int senderPort) {
+		if (shard < 0 || shard >= TaskProtocol.MAX_SHARDS) {
+			throw new IllegalArgumentException("shard out of range: " + shard);
+		}
+		
+		ZMQ.Socket taskSocket = zmqContext.socket(ZMQ.DEALER);
+		taskSocket.setIdentity(identity);
+		taskSocket.connect("tcp://" + host + ":" + port);
+		ZMQ.Socket sinkSocket = zmqContext.socket(ZMQ.PUSH);
+		sinkSocket.connect("tcp://" + senderHost + ":" + senderPort);
+		
+		ShardConnection connection = new ShardConnection(taskSocket, sinkSocket);
+		if (shard >= shards.length) {
+			shards = Arrays.copyOf(shards, shard + 1);
+		}
+		shards[shard] = connection;
+		connections.add(connection);
+	}
+	
+	/**
+	 * @param requestId request id of a task
+	 * @return the connection to the Master shard that issued the task
+	 */
+	private ShardConnection connection(long requestId) {
+		int shard = TaskProtocol.shardOf(requestId);
+		ShardConnection connection = shard < shards.length ? shards[shard] : null;
+		return connection != null ? connection : primary;
+	}
+	
+	/**
+	 * Registers a combiner merging the results of an associative task method on the worker node; its results 
+	 * are then forwarded as partial aggregates of the tasks done within a window, and the task sink hands the
+	 * aggregate to the master's aggregate callback of the method, which has to be set, completing the tasks with
+	 * the default instance of the result type. Note that with redelivery, a task done twice may be counted twice 
+	 * once merged into an aggregate
+	 * 
+	 * @param method the task method
+	 * @param combiner the combiner of its results
+	 */
+	public synchronized void registerCombiner(MethodDescriptor method, Combiner combiner) {
+		combiners = combiners.plus(Collections.singletonMap(OpCodeTable.opCode(method), combiner));
+	}
+	
+	/**
+	 * Sets how long and for how many tasks results are merged into a partial aggregate before it is forwarded; 
+	 * results are only delayed by up to the window, the credits of their tasks are returned straight away
+	 * 
+	 * @param windowMillis maximum time between the first result merged and the aggregate being forwarded
+	 * @param maxTasks maximum number of task results per aggregate
+	 */
+	public void setCombineWindow(long windowMillis, int maxTasks) {
+		if (windowMillis < 0 || maxTasks < 1) {
+			throw new IllegalArgumentException("invalid combine window " + windowMillis + " or size " + maxTasks);
+		}
+		this.combineWindowMillis = windowMillis;
+		this.combineMaxTasks = maxTasks;
+	}
+	
+	/**
+	 * Drains the worker node before it is shut down, e.g. in a rolling deploy, and waits until it is drained: 
+	 * the worker node tells every Master shard it is leaving and returns no more credits, gives back the tasks
+	 * not started yet so that they run on other worker nodes, finishes the running ones and sends their results,
+	 * flushing the open partial aggregates. Once every shard has acknowledged its leaving, no more task can be
+	 * on its way, and the listener thread returns from {@link #start()} as soon as the last result is sent
+	 * 
+	 * @param timeout maximum time to wait
+	 * @param unit unit of the timeout
+	 * @return whether the worker node was drained in time, the drain going on otherwise
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public boolean drain(long timeout, TimeUnit unit) throws InterruptedException {
+		draining = true;
+		resultsQueued.raise();
+		return drained.await(timeout, unit);
 	}
 	
 	/**
@@ -64,27 +497,16 @@ public class Worker extends Listener {
 	 * task sink
 	 * 
 	 * @param requestId the request id of the submitted task
+	 * @param opCode op-code of the task method
 	 * @return the callback handler that encodes the request id and result of the submitted task after the task has been done
 	 */
-	protected RpcCallback<Message> callback(Long requestId) {
+	protected RpcCallback<Message> callback(long requestId, long opCode) {
 		RpcCallback<Message> sendTaskResult = new RpcCallback<Message>() {
 			@Override
 			public void run(Message msg) {
-				byte[] requestIdBytes = ByteBuffer.allocate(Long.BYTES).putLong(requestId).array();				
-				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-				
-				// serialize the message with the task id and task results
-				try {
-					outputStream.write(requestIdBytes);
-					outputStream.write(msg.toByteArray());
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				
-				// forward the result to task sink in synchronized fashion
-				synchronized(senderSocketBlock) {
-					senderSocket.send(outputStream.toByteArray(), 0);
-				}
+				// queue the task id and task result for the listener thread to forward to task sink
+				results.offer(new TaskResult(requestId, opCode, msg));
+				resultsQueued.raise();
 			}
 		};
 		
@@ -94,42 +516,361 @@ public class Worker extends Listener {
 	
 	/**
 	 * The overriden listener thread for worker node to listen and decode task requests
-	 * as they come in from the master node; perform the work via protobuf service proxy and 
-	 * forward the result back to master node's task sink/collector
+	 * as they come in from the master node in batches; perform the work via protobuf service proxy on the dispatch
+	 * executor and forward the results back to master node's task sink/collector in batches. The worker node first
+	 * splits its prefetch count among the Master shards it is connected to, rounding up so that every shard gets
+	 * a credit, then returns a credit to the shard of every task it is done with, and gives back the tasks still
+	 * waiting in its local queue when a shard steals them for an idle node
 	 * 
 	 */
 	public void start() {
+		ZMQ.Poller poller = new ZMQ.Poller(connections.size() + 1);
+		int[] socketIndexes = new int[connections.size()];
+		for (int i = 0; i < socketIndexes.length; i++) {
+			socketIndexes[i] = poller.register(connections.get(i).taskSocket, ZMQ.Poller.POLLIN);
+		}
+		int resultsIndex = resultsQueued.register(poller);
+		
+		int shardPrefetch = (prefetch + connections.size() - 1) / connections.size();
+		for (ShardConnection connection : connections) {
+			sendCredits(connection, shardPrefetch);
+		}
+		
+		boolean leaving = false;
 		while (!Thread.currentThread().isInterrupted()) {
+			// only wake up for timers while partial aggregates are open
+			long closesAt = nextAggregateClose();
+			poller.poll(closesAt == Long.MAX_VALUE ? -1 : Math.max(closesAt - System.currentTimeMillis(), 1));
 			
-			// get the top request from the zeromq listening socket
-			byte[] requestArr;
-			synchronized (socketBlock) {
-				requestArr = zmqSocket.recv(0);
+			if (poller.pollin(resultsIndex)) {
+				resultsQueued.clear();
+				sendResults();
+			} else if (closesAt != Long.MAX_VALUE) {
+				sendResults();
 			}
 			
-			// parse corresponding method/service descriptor from its hashed value
-			// a task message contains the method op code, task id and the task arguments in that order
-			ByteBuffer byteBuffer = ByteBuffer.wrap(requestArr);
-			Long opCode = byteBuffer.getLong(0);
-			Long requestId = byteBuffer.getLong(Long.BYTES);
-			RequestMessage methodMessage = rpcMethodMap.get(opCode);
+			for (int i = 0; i < socketIndexes.length; i++) {
+				if (poller.pollin(socketIndexes[i])) {
+					receive(connections.get(i));
+				}
+			}
+			
+			// tasks that will never produce a result give their credit back straight away
+			dispatchReceived();
 			
-			if (methodMessage == null)	// invalid message as the service descriptor cannot be found, skip to next message
+			if (draining) {
+				if (!leaving) {
+					leaving = true;
+					leave();
+				}
+				if (isDrained()) {
+					drained.countDown();
+					return;
+				}
 				continue;
+			}
 			
-			MethodDescriptor method = methodMessage.method;
-			Message request = methodMessage.request;
-			Service service = methodMessage.service;
-						
-			try {
-				// parse the request parameters and call the registered service implementation with the method and parameters
-				request = request.getParserForType().parseFrom(requestArr, Long.BYTES * 2, requestArr.length - Long.BYTES * 2);
-				service.callMethod(method, null, request, callback(requestId));	// pass the specific callback hook
-			} catch (InvalidProtocolBufferException e) {
-				e.printStackTrace();
+			for (ShardConnection connection : connections) {
+				sendCredits(connection, connection.credits);
+				connection.credits = 0;
 			}
 		}
 	}
+	
+	/**
+	 * Tells every Master shard the worker node is leaving, and gives back the tasks waiting in the local queue
+	 */
+	private void leave() {
+		for (ShardConnection connection : connections) {
+			connection.taskSocket.send(TaskProtocol.LEAVING_FRAME, ZMQ.SNDMORE);
+			frameBuffer.sendLong(connection.taskSocket, 0, 0);
+			giveBack(connection, Long.MAX_VALUE);
+		}
+		
+		// the listener thread may be blocked with no result on its way, flush the open aggregates
+		sendResults();
+	}
+	
+	/**
+	 * @return whether every Master shard acknowledged the worker node's leaving and every task's result was sent
+	 */
+	private boolean isDrained() {
+		for (ShardConnection connection : connections) {
+			if (!connection.left)
+				return false;
+		}
+		return outstanding == 0 && results.isEmpty() && nextAggregateClose() == Long.MAX_VALUE;
+	}
+	
+	/**
+	 * Receives the batches of tasks and the control messages queued on the task socket of a Master shard
+	 * 
+	 * @param connection connection to the Master shard
+	 */
+	private void receive(ShardConnection connection) {
+		ZMQ.Socket socket = connection.taskSocket;
+		
+		for (int i = 0; i < RECEIVE_BATCH; i++) {
+			// get the top batch of tasks from the zeromq listening socket
+			byte[] batchFrame = socket.recv(ZMQ.DONTWAIT);
+			if (batchFrame == null)	// no more tasks queued on the socket
+				break;
+			
+			if (batchFrame.length == 1 && socket.hasReceiveMore()) {	// a control message, not a batch
+				byte[] argumentFrame = FrameBuffer.receiveLastFrame(socket);
+				if (argumentFrame == null || !TaskProtocol.isWellFormed(batchFrame[0], argumentFrame)) {
+					// malformed message, drop it and skip to next message
+					new IllegalArgumentException("Dropping malformed control message from a Master shard").printStackTrace();
+				} else if (batchFrame[0] == TaskProtocol.STEAL) {
+					giveBack(connection, Utils.bytesToLong(argumentFrame));
+				} else if (batchFrame[0] == TaskProtocol.LEAVING) {
+					connection.left = true;
+				}
+				continue;
+			}
+			
+			while (socket.hasReceiveMore()) {	// skip unexpected frames to stay aligned on the next message
+				socket.recv(0);
+			}
+			
+			receiveBatch(batchFrame);
+		}
+	}
+	
+	/**
+	 * Decodes a batch of tasks, each made of the method op code, task id, priority and the task arguments in 
+	 * that order, into the tasks received but not yet dispatched
+	 * 
+	 * @param batchFrame the batch frame
+	 */
+	protected void receiveBatch(byte[] batchFrame) {
+		CodedInputStream input = CodedInputStream.newInstance(batchFrame);
+		
+		try {
+			while (!input.isAtEnd()) {
+				long opCode = input.readFixed64();
+				long requestId = input.readFixed64();
+				int priority = input.readRawVarint32();
+				int length = input.readRawVarint32();
+				
+				received.add(new ReceivedTask(opCode, requestId, priority, batchFrame, input.getTotalBytesRead(), length));
+				input.skipRawBytes(length);
+			}
+		} catch (IOException e) {	// malformed batch, the rest of its tasks are lost
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Hands the received tasks off to the dispatch executor with a callback forwarding their results, the 
+	 * most urgent first when tasks of several priorities are pending; the tasks that could not be dispatched
+	 * give their credits back to their Master shards. While draining, the tasks are given back instead
+	 * 
+	 * @return the number of tasks that could not be dispatched
+	 */
+	protected int dispatchReceived() {
+		int rejected = 0;
+		
+		if (draining && !received.isEmpty()) {
+			for (ShardConnection connection : connections) {
+				ByteBuffer ids = ByteBuffer.allocate(received.size() * Long.BYTES);
+				for (ReceivedTask task : received) {
+					if (connection(task.requestId) == connection) {
+						ids.putLong(task.requestId);
+					}
+				}
+				sendReturned(connection, ids, false);
+			}
+			received.clear();
+			return rejected;
+		}
+		
+		boolean mixed = false;
+		for (int i = 1; i < received.size() && !mixed; i++) {
+			mixed = received.get(i).priority != received.get(0).priority;
+		}
+		if (mixed) {
+			// stable, so tasks of the same priority keep their order
+			received.sort(BY_PRIORITY);
+		}
+		
+		for (ReceivedTask task : received) {
+			CodedInputStream input = CodedInputStream.newInstance(task.frame, task.offset, task.length);
+			Runnable call = prepare(task.opCode, input, callback(task.requestId, task.opCode));
+			if (call == null) {
+				connection(task.requestId).credits++;
+				rejected++;
+			} else if (taskPool != null) {
+				outstanding++;
+				taskPool.execute(new QueuedTask(task.priority, task.requestId, queuedSequence.getAndIncrement(), call));
+			} else {
+				outstanding++;
+				dispatchExecutor.execute(call);
+			}
+		}
+		received.clear();
+		
+		return rejected;
+	}
+	
+	/**
+	 * Takes tasks still waiting for a task thread off the local queue, the least urgent and latest first, and 
+	 * gives them back to the Master shard that sent them along with their credits; the tasks taken never run
+	 * here, and run under the same request ids wherever the Master shard sends them next; the Master shard is
+	 * answered even if no task is waiting, so that it asks other worker nodes first
+	 * 
+	 * @param connection connection to the Master shard
+	 * @param count maximum number of tasks to give back
+	 */
+	private void giveBack(ShardConnection connection, long count) {
+		if (taskPool == null || count < 1) {
+			sendReturned(connection, ByteBuffer.allocate(0), true);
+			return;
+		}
+		
+		BlockingQueue<Runnable> queue = taskPool.getQueue();
+		Object[] queued = queue.toArray();
+		Arrays.sort(queued, Collections.reverseOrder());
+		
+		ByteBuffer ids = ByteBuffer.allocate((int) Math.min(count, queued.length) * Long.BYTES);
+		for (int i = 0; i < queued.length && ids.hasRemaining(); i++) {
+			// a task thread may have taken the task in the meantime
+			QueuedTask task = (QueuedTask) queued[i];
+			if (connection(task.requestId) == connection && queue.remove(task)) {
+				outstanding--;
+				ids.putLong(task.requestId);
+			}
+		}
+		
+		sendReturned(connection, ids, true);
+	}
+	
+	/**
+	 * Gives tasks back to a Master shard
+	 * 
+	 * @param connection connection to the Master shard
+	 * @param ids the request ids of the tasks, up to the buffer's position
+	 * @param evenIfNone whether to send the message even if there are no tasks, e.g. to answer a request
+	 */
+	private void sendReturned(ShardConnection connection, ByteBuffer ids, boolean evenIfNone) {
+		if (evenIfNone || ids.position() > 0) {
+			connection.taskSocket.send(TaskProtocol.RETURNED_FRAME, ZMQ.SNDMORE);
+			connection.taskSocket.send(ids.array(), 0, ids.position(), 0);
+		}
+	}
+	
+	/**
+	 * Sends the queued task results to the task sinks of their Master shards in batches, merging those of the
+	 * combined task methods into their partial aggregates and sending the aggregates whose window is over; the
+	 * credits of the tasks done are added to their shards' connections
+	 * 
+	 * @return the number of tasks done, i.e. the number of task results sent or merged
+	 */
+	protected int sendResults() {
+		LongHashTable<Combiner> combiners = this.combiners;
+		int done = 0;
+		TaskResult taskResult;
+		
+		try {
+			while ((taskResult = results.poll()) != null) {
+				done++;
+				outstanding--;
+				ShardConnection connection = connection(taskResult.requestId);
+				connection.credits++;
+				TaskBatchWriter resultBatch = connection.resultBatch;
+				
+				Combiner combiner = combiners.size() == 0 ? null : combiners.get(taskResult.opCode);
+				if (combiner == null) {
+					resultBatch.addResult(taskResult.requestId, taskResult.result);
+				} else if (combine(connection, taskResult, combiner)) {
+					continue;
+				}
+				
+				if (resultBatch.size() >= TaskBatchWriter.DEFAULT_MAX_TASKS || resultBatch.bytes() >= TaskBatchWriter.DEFAULT_MAX_BYTES) {
+					resultBatch.send(connection.sinkSocket, 0);
+				}
+			}
+			
+			// forward the partial aggregates whose window is over, or all of them while draining
+			long now = draining ? Long.MAX_VALUE : System.currentTimeMillis();
+			for (ShardConnection connection : connections) {
+				Iterator<Aggregate> iterator = connection.aggregates.values().iterator();
+				while (iterator.hasNext()) {
+					Aggregate aggregate = iterator.next();
+					if (now >= aggregate.closesAt) {
+						iterator.remove();
+						connection.resultBatch.addAggregate(aggregate.requestIds, aggregate.tasks, aggregate.value);
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		for (ShardConnection connection : connections) {
+			if (!connection.resultBatch.isEmpty()) {
+				connection.resultBatch.send(connection.sinkSocket, 0);
+			}
+		}
+		return done;
+	}
+	
+	/**
+	 * Merges a task result into the open partial aggregate of its method and Master shard, opening one if 
+	 * needed, and adds the aggregate to the shard's batch of task results once full
+	 * 
+	 * @param connection connection to the Master shard of the task
+	 * @param taskResult the task result
+	 * @param combiner the combiner of the task method
+	 * @return whether the aggregate stays open, i.e. nothing was added to the batch
+	 * @throws IOException
+	 */
+	private boolean combine(ShardConnection connection, TaskResult taskResult, Combiner combiner) throws IOException {
+		Map<Long, Aggregate> aggregates = connection.aggregates;
+		Aggregate aggregate = aggregates.get(taskResult.opCode);
+		if (aggregate == null) {
+			aggregate = new Aggregate(combiner, combineMaxTasks, System.currentTimeMillis() + combineWindowMillis);
+			aggregate.value = taskResult.result;
+			aggregates.put(taskResult.opCode, aggregate);
+		} else {
+			aggregate.value = aggregate.combiner.combine(aggregate.value, taskResult.result);
+		}
+		aggregate.requestIds[aggregate.tasks++] = taskResult.requestId;
+		
+		if (aggregate.tasks < aggregate.requestIds.length)
+			return true;
+		
+		aggregates.remove(taskResult.opCode);
+		connection.resultBatch.addAggregate(aggregate.requestIds, aggregate.tasks, aggregate.value);
+		return false;
+	}
+	
+	/**
+	 * @return the time the first of the open partial aggregates is due to be forwarded, or Long.MAX_VALUE if
+	 * none is open
+	 */
+	private long nextAggregateClose() {
+		long closesAt = Long.MAX_VALUE;
+		for (ShardConnection connection : connections) {
+			for (Aggregate aggregate : connection.aggregates.values()) {
+				closesAt = Math.min(closesAt, aggregate.closesAt);
+			}
+		}
+		return closesAt;
+	}
+	
+	/**
+	 * Announces to a Master shard that the worker node is ready to take on more tasks
+	 * 
+	 * @param connection connection to the Master shard
+	 * @param credits number of additional tasks, nothing is sent if 0
+	 */
+	private void sendCredits(ShardConnection connection, int credits) {
+		if (credits > 0) {
+			connection.taskSocket.send(TaskProtocol.READY_FRAME, ZMQ.SNDMORE);
+			frameBuffer.sendLong(connection.taskSocket, credits, 0);
+		}
+	}
 
 	@Override
 	protected RpcCallback<Message> callback() {
@@ -0,0 +1,259 @@
+package taskqueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import utils.HashRing;
+
+/**
+ * WorkerCredits keeps track of the worker nodes connected to the Master's task socket and of how many more 
+ * tasks each has announced it is ready to take on; tasks go round-robin to the worker nodes that have credit 
+ * left, so a busy node stops receiving work until it returns credits with its results. It also counts the 
+ * tasks each node holds, for idle nodes to steal from the busiest ones, and places the nodes on a consistent-hash
+ * ring for the tasks with an affinity key to stick to the same node. Not thread-safe, confined to the 
+ * Master's dispatch thread
+ * 
+ * @author paulcao
+ *
+ */
+public class WorkerCredits {
+
+	/**
+	 * A worker node by the routing identity of its connection
+	 */
+	public static class WorkerNode {
+		public final byte[] identity;
+		int credits;
+		
+		/**
+		 * Tasks sent to the worker node whose credits have not come back yet, i.e. running or queued there
+		 */
+		int holding;
+		
+		/**
+		 * Time until which no more tasks are stolen from the worker node, once asked to give some back
+		 */
+		long stealBlockedUntil;
+		
+		/**
+		 * Requests to give back tasks the worker node answered in a row with none, e.g. as it runs every task 
+		 * it holds with no local queue
+		 */
+		int stealMisses;
+
+		WorkerNode(byte[] identity) {
+			this.identity = identity;
+		}
+		
+		public int getCredits() {
+			return credits;
+		}
+		
+		public int getHolding() {
+			return holding;
+		}
+	}
+	
+	private final Map<ByteBuffer, WorkerNode> workers = new HashMap<ByteBuffer, WorkerNode>();
+	
+	/**
+	 * Worker nodes with credit left, each at most once, in the order they are sent tasks
+	 */
+	private final ArrayDeque<WorkerNode> ready = new ArrayDeque<WorkerNode>();
+	
+	/**
+	 * Worker nodes by the affinity keys they own
+	 */
+	private final HashRing<WorkerNode> ring = new HashRing<WorkerNode>();
+	
+	private static final Predicate<WorkerNode> HAS_CREDIT = new Predicate<WorkerNode>() {
+		@Override
+		public boolean test(WorkerNode worker) {
+			return worker.credits > 0;
+		}
+	};
+	
+	/**
+	 * Adds credits to a worker node, registering it on its first announcement
+	 * 
+	 * @param identity routing identity of the worker node
+	 * @param credits number of tasks the worker node is ready to take on besides those it already has
+	 * @return the worker node
+	 */
+	public WorkerNode grant(byte[] identity, long credits) {
+		ByteBuffer key = ByteBuffer.wrap(identity);
+		WorkerNode worker = workers.get(key);
+		if (worker == null) {
+			worker = new WorkerNode(identity);
+			workers.put(key, worker);
+			ring.add(identity, worker);
+		}
+		
+		if (credits > 0) {
+			worker.holding = (int) Math.max(worker.holding - credits, 0);
+			if (worker.credits == 0) {
+				ready.addLast(worker);
+			}
+			worker.credits = (int) Math.min((long) worker.credits + credits, Integer.MAX_VALUE);
+		}
+		return worker;
+	}
+	
+	/**
+	 * Takes a credit from the next worker node in turn, preferring any other worker node to the one given
+	 * 
+	 * @param avoid worker node to pass over if another has credit (e.g., the one a task timed out on), or null
+	 * @return the worker node to send a task to, or null if no worker node has credit left
+	 */
+	public WorkerNode take(WorkerNode avoid) {
+		WorkerNode worker = ready.pollFirst();
+		if (worker == null)
+			return null;
+		
+		if (worker == avoid && !ready.isEmpty()) {
+			WorkerNode other = ready.pollFirst();
+			ready.addFirst(worker);
+			worker = other;
+		}
+		
+		if (--worker.credits > 0) {
+			ready.addLast(worker);
+		}
+		worker.holding++;
+		return worker;
+	}
+	
+	/**
+	 * Takes a credit from the worker node owning an affinity key on the ring or, if it has no credit left, from
+	 * the next one along the ring that has, so that keys stay with their worker nodes unless these are busy
+	 * 
+	 * @param affinity hash of the affinity key
+	 * @return the worker node to send the task to, or null if no worker node has credit left
+	 */
+	public WorkerNode takeFor(int affinity) {
+		WorkerNode worker = preferred(affinity);
+		if (worker != null) {
+			takeFrom(worker);
+		}
+		return worker;
+	}
+	
+	/**
+	 * @param affinity hash of the affinity key
+	 * @return the worker node a task with the affinity key would be sent to, or null if no worker node has 
+	 * credit left
+	 */
+	public WorkerNode preferred(int affinity) {
+		return ready.isEmpty() ? null : ring.find(affinity, HAS_CREDIT);
+	}
+	
+	/**
+	 * Takes one more credit from a worker node, e.g. to add another task to a batch sent to it
+	 * 
+	 * @param worker the worker node
+	 * @return whether the worker node had credit left
+	 */
+	public boolean takeFrom(WorkerNode worker) {
+		if (worker.credits == 0)
+			return false;
+		
+		if (--worker.credits == 0) {
+			ready.remove(worker);
+		}
+		worker.holding++;
+		return true;
+	}
+	
+	/**
+	 * @param worker a worker node
+	 * @return whether any worker node but the given one has credit left
+	 */
+	public boolean hasCreditBesides(WorkerNode worker) {
+		return ready.size() > 1 || (!ready.isEmpty() && ready.peekFirst() != worker);
+	}
+	
+	/**
+	 * @return whether a worker node with credit left has no task at all, i.e. sits idle
+	 */
+	public boolean hasIdle() {
+		for (WorkerNode worker : ready) {
+			if (worker.holding == 0)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * @param minHolding minimum number of tasks held
+	 * @param now current time
+	 * @return the worker node holding the most tasks, at least the minimum, among those that may be asked to 
+	 * give back tasks at the moment, or null
+	 */
+	public WorkerNode busiest(int minHolding, long now) {
+		WorkerNode busiest = null;
+		for (WorkerNode worker : workers.values()) {
+			if (worker.holding >= minHolding && worker.stealBlockedUntil <= now 
+					&& (busiest == null || worker.holding > busiest.holding)) {
+				busiest = worker;
+			}
+		}
+		return busiest;
+	}
+	
+	/**
+	 * @param minHolding minimum number of tasks held
+	 * @return the earliest time a worker node holding at least the minimum may be asked to give back tasks, 
+	 * or -1 if none holds enough tasks
+	 */
+	public long nextStealAt(int minHolding) {
+		long next = -1;
+		for (WorkerNode worker : workers.values()) {
+			if (worker.holding >= minHolding && (next < 0 || worker.stealBlockedUntil < next)) {
+				next = worker.stealBlockedUntil;
+			}
+		}
+		return next;
+	}
+	
+	/**
+	 * @param identity routing identity of a worker node
+	 * @return the worker node, or null if it has not announced itself
+	 */
+	public WorkerNode get(byte[] identity) {
+		return workers.get(ByteBuffer.wrap(identity));
+	}
+	
+	/**
+	 * Forgets a worker node leaving, taking it off the ring and dropping its credits, so that no more tasks 
+	 * are sent to it; it is registered anew if it announces credits again
+	 * 
+	 * @param identity routing identity of the worker node
+	 * @return the worker node, or null if it had not announced itself
+	 */
+	public WorkerNode leave(byte[] identity) {
+		WorkerNode worker = workers.remove(ByteBuffer.wrap(identity));
+		if (worker != null) {
+			ready.remove(worker);
+			ring.remove(identity, worker);
+			worker.credits = 0;
+		}
+		return worker;
+	}
+	
+	/**
+	 * @return whether any worker node has credit left
+	 */
+	public boolean hasCredit() {
+		return !ready.isEmpty();
+	}
+	
+	/**
+	 * @return the number of worker nodes that have announced themselves
+	 */
+	public int size() {
+		return workers.size();
+	}
+}
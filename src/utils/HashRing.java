@@ -0,0 +1,125 @@
+package utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Consistent-hash ring mapping key hashes to nodes; every node is placed at a number of points of the ring
+ * (its virtual nodes) hashed from its id with the Jenkins hash, and a key belongs to the node of the first
+ * point at or after its hash. A node joining or leaving only moves the keys of the arcs it takes over or
+ * gives up, about one in the number of nodes, the other keys staying with their nodes. Not thread-safe
+ *
+ * @author paulcao
+ *
+ * @param <T> type of the nodes
+ */
+public class HashRing<T> {
+
+	/**
+	 * Default number of points per node, spreading the keys evenly enough across a few dozen nodes
+	 */
+	public static final int DEFAULT_REPLICAS = 128;
+
+	private final TreeMap<Integer, T> points = new TreeMap<Integer, T>();
+
+	private final int replicas;
+
+	private int size;
+
+	public HashRing() {
+		this(DEFAULT_REPLICAS);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param replicas number of points per node
+	 */
+	public HashRing(int replicas) {
+		if (replicas < 1) {
+			throw new IllegalArgumentException("replicas must be positive: " + replicas);
+		}
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Places a node on the ring
+	 *
+	 * @param id id of the node, the same on every process sharing the ring for keys to map to the same nodes
+	 * @param node the node
+	 */
+	public void add(byte[] id, T node) {
+		JenkinsHash jenkinsHash = JenkinsHash.getInstance();
+		for (int i = 0; i < replicas; i++) {
+			// each replica's point is the node id's hash seeded with the replica's index
+			points.put(jenkinsHash.hash(id, id.length, i), node);
+		}
+		size++;
+	}
+
+	/**
+	 * Takes a node off the ring, its keys moving to the nodes of the following points
+	 *
+	 * @param id id of the node
+	 * @param node the node
+	 */
+	public void remove(byte[] id, T node) {
+		JenkinsHash jenkinsHash = JenkinsHash.getInstance();
+		for (int i = 0; i < replicas; i++) {
+			// leave the points another node took over on a collision
+			points.remove(jenkinsHash.hash(id, id.length, i), node);
+		}
+		size--;
+	}
+
+	/**
+	 * @param keyHash hash of the key, e.g. {@link #hash(String)}
+	 * @return the node the key belongs to, or null if the ring is empty
+	 */
+	public T get(int keyHash) {
+		Map.Entry<Integer, T> entry = points.ceilingEntry(keyHash);
+		if (entry == null) {	// past the last point, wrap around
+			entry = points.firstEntry();
+		}
+		return entry == null ? null : entry.getValue();
+	}
+
+	/**
+	 * Walks the ring from a key's hash, e.g. to skip the nodes that cannot take the key at the moment
+	 *
+	 * @param keyHash hash of the key
+	 * @param accept whether a node may take the key
+	 * @return the first node accepted in the key's walk around the ring, or null if none is
+	 */
+	public T find(int keyHash, Predicate<T> accept) {
+		for (T node : points.tailMap(keyHash, true).values()) {
+			if (accept.test(node))
+				return node;
+		}
+		for (T node : points.headMap(keyHash, false).values()) {
+			if (accept.test(node))
+				return node;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key the key
+	 * @return the hash of the key on the ring, the same on every process
+	 */
+	public static int hash(String key) {
+		return (int) (Utils.hashString(key) >>> 32);
+	}
+
+	/**
+	 * @return the number of nodes on the ring
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+}
@@ -0,0 +1,121 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in milliseconds, kept as a running distribution: buckets are a power of two wide
+ * split into eight sub-buckets, so that any latency is counted within 12.5% of its value, and all counts are
+ * halved every window of samples so that older samples fade out. Latencies can be recorded and quantiles
+ * read from any thread, quantiles being approximate while samples are recorded concurrently
+ *
+ * @author paulcao
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Default number of samples after which the counts are halved
+	 */
+	public static final int DEFAULT_WINDOW = 4096;
+
+	private final AtomicLongArray counts = new AtomicLongArray((Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS);
+
+	/**
+	 * Sum of the counts
+	 */
+	private final AtomicLong total = new AtomicLong();
+
+	private final int window;
+
+	public LatencyHistogram() {
+		this(DEFAULT_WINDOW);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param window number of samples after which the counts are halved; the distribution reflects the last
+	 * one to two windows of samples
+	 */
+	public LatencyHistogram(int window) {
+		if (window < 2) {
+			throw new IllegalArgumentException("window must be at least 2: " + window);
+		}
+		this.window = window;
+	}
+
+	/**
+	 * @param latencyMillis latency to count, negative latencies being counted as 0
+	 */
+	public void record(long latencyMillis) {
+		counts.incrementAndGet(bucket(Math.max(latencyMillis, 0)));
+
+		long count = total.incrementAndGet();
+		if (count >= window && total.compareAndSet(count, 0)) {
+			// the thread that completes a window halves the counts, leaving the total their new sum
+			long sum = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				long halved = counts.get(i) >> 1;
+				counts.addAndGet(i, -halved);
+				sum += counts.get(i);
+			}
+			total.addAndGet(sum);
+		}
+	}
+
+	/**
+	 * @param quantile the quantile, between 0 and 1 (e.g., 0.99)
+	 * @return the upper bound of the bucket holding the quantile's latency, or -1 if nothing was recorded
+	 */
+	public long quantile(double quantile) {
+		if (quantile < 0 || quantile > 1) {
+			throw new IllegalArgumentException("invalid quantile " + quantile);
+		}
+
+		long[] snapshot = new long[counts.length()];
+		long sum = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			snapshot[i] = counts.get(i);
+			sum += snapshot[i];
+		}
+		if (sum == 0)
+			return -1;
+
+		long rank = Math.max((long) Math.ceil(quantile * sum), 1);
+		for (int i = 0; i < snapshot.length; i++) {
+			rank -= snapshot[i];
+			if (rank <= 0)
+				return upperBound(i);
+		}
+		return upperBound(snapshot.length - 1);
+	}
+
+	/**
+	 * @return the number of samples the distribution is made of, i.e. the sum of the halved counts
+	 */
+	public long count() {
+		return total.get();
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+
+		int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+		return lowerBound + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
@@ -0,0 +1,122 @@
+package utils;
+
+import java.util.Map;
+
+/**
+ * Immutable open-addressing hash table from primitive long keys to values; lookups neither box the key
+ * nor allocate, and probe a pair of flat arrays with linear probing. Updates build a new table, so a
+ * table can be published through a volatile field and read by any thread without locking
+ *
+ * @author paulcao
+ *
+ * @param <V> value type
+ */
+public final class LongHashTable<V> {
+
+	private static final LongHashTable<Object> EMPTY = new LongHashTable<Object>(new long[2], new Object[2], 0);
+
+	private final long[] keys;
+
+	/**
+	 * Values in the same slots as their keys; a null value marks an empty slot
+	 */
+	private final Object[] values;
+
+	private final int mask;
+
+	private final int size;
+
+	private LongHashTable(long[] keys, Object[] values, int size) {
+		this.keys = keys;
+		this.values = values;
+		this.mask = keys.length - 1;
+		this.size = size;
+	}
+
+	/**
+	 * @return the shared empty table
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> LongHashTable<V> empty() {
+		return (LongHashTable<V>) EMPTY;
+	}
+
+	/**
+	 * Spreads the key bits over the slot index, as op-codes and request ids may cluster in their low bits
+	 */
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/**
+	 * Looks up the value of a key
+	 *
+	 * @param key primitive key
+	 * @return the value, or null if the key is absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				return (V) values[i];
+			}
+		}
+		return null;
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Builds a new table holding this table's entries plus the given ones, overriding existing keys; this
+	 * table is left untouched
+	 *
+	 * @param entries entries to add, with non-null values
+	 * @return the new table
+	 */
+	public LongHashTable<V> plus(Map<Long, ? extends V> entries) {
+		// keep the load factor at or below one half so probe sequences stay short
+		int capacity = 2;
+		while (capacity < (size + entries.size()) * 2) {
+			capacity <<= 1;
+		}
+
+		long[] newKeys = new long[capacity];
+		Object[] newValues = new Object[capacity];
+		int newSize = 0;
+
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null) {
+				newSize += insert(newKeys, newValues, keys[i], values[i]);
+			}
+		}
+		for (Map.Entry<Long, ? extends V> entry : entries.entrySet()) {
+			newSize += insert(newKeys, newValues, entry.getKey(), entry.getValue());
+		}
+
+		return new LongHashTable<V>(newKeys, newValues, newSize);
+	}
+
+	/**
+	 * @return 1 if the key was newly inserted, 0 if an existing key's value was replaced
+	 */
+	private static int insert(long[] keys, Object[] values, long key, Object value) {
+		int mask = keys.length - 1;
+		int i = slot(key, mask);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				values[i] = value;
+				return 0;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		return 1;
+	}
+}
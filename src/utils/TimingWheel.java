@@ -0,0 +1,207 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel holding timeouts for very large numbers of items; scheduling is O(1) and allocates
+ * a single list node, and advancing the clock only visits the buckets of the elapsed ticks. The first level
+ * has a bucket per tick, and every further level a bucket per full turn of the level below it, so timeouts
+ * of any distance are held in a few levels and move down a level each time their bucket comes up, instead
+ * of being revisited on every turn; the levels beyond the first are allocated on first use. Timeouts are
+ * never cancelled one by one, the handler is expected to check whether an expired item still matters, but the
+ * wheel can be cleared as a whole. Not thread-safe, the wheel is confined to the thread that owns it
+ *
+ * @author paulcao
+ *
+ * @param <T> type of the items timing out
+ */
+public class TimingWheel<T> {
+
+	private static class Node<T> {
+		final T item;
+		final long deadlineTick;
+		Node<T> next;
+
+		Node(T item, long deadlineTick, Node<T> next) {
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+			this.next = next;
+		}
+	}
+
+	private final long tickMillis;
+
+	/**
+	 * Buckets of each level, a level's bucket covering a full turn of the level below
+	 */
+	private final Node<T>[][] levels;
+
+	/**
+	 * Number of tick bits a level's bucket index is made of
+	 */
+	private final int bits;
+
+	private final int mask;
+
+	/**
+	 * The last tick whose bucket has been expired
+	 */
+	private long currentTick;
+
+	private int size;
+
+	/**
+	 * Constructor
+	 *
+	 * @param tickMillis resolution of the timeouts
+	 * @param wheelSize number of buckets per level, rounded up to a power of two; timeouts further away than
+	 * one turn of the first level are held in the levels above
+	 * @param startMillis current time
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+		if (tickMillis < 1 || wheelSize < 2 || wheelSize > 1 << 30) {
+			throw new IllegalArgumentException("invalid tick " + tickMillis + " or wheel size " + wheelSize);
+		}
+
+		int length = Integer.highestOneBit(wheelSize);
+		if (length < wheelSize) {
+			length <<= 1;
+		}
+
+		this.tickMillis = tickMillis;
+		this.bits = Integer.numberOfTrailingZeros(length);
+		this.mask = length - 1;
+		this.levels = (Node<T>[][]) new Node[(Long.SIZE + bits - 1) / bits][];
+		this.levels[0] = (Node<T>[]) new Node[length];
+		this.currentTick = startMillis / tickMillis;
+	}
+
+	/**
+	 * Schedules an item to time out at a deadline; deadlines in the past time out on the next advance
+	 *
+	 * @param item the item
+	 * @param deadlineMillis time at which the item times out
+	 */
+	public void schedule(T item, long deadlineMillis) {
+		// round up, so that items never time out before their deadline
+		long deadlineTick = Math.max((deadlineMillis + tickMillis - 1) / tickMillis, currentTick + 1);
+		insert(new Node<T>(item, deadlineTick, null));
+		size++;
+	}
+
+	/**
+	 * Puts a node in the lowest level whose current turn holds its deadline
+	 *
+	 * @param node the node, due at or after the current tick
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void insert(Node<T> node) {
+		long differentBits = node.deadlineTick ^ currentTick;
+		int level = differentBits == 0 ? 0 : (Long.SIZE - 1 - Long.numberOfLeadingZeros(differentBits)) / bits;
+
+		Node<T>[] buckets = levels[level];
+		if (buckets == null) {
+			buckets = levels[level] = (Node<T>[]) new Node[mask + 1];
+		}
+
+		int bucket = (int) (node.deadlineTick >>> (bits * level)) & mask;
+		node.next = buckets[bucket];
+		buckets[bucket] = node;
+	}
+
+	/**
+	 * Advances the wheel to the current time, passing every item whose deadline has passed to the handler
+	 *
+	 * @param nowMillis current time
+	 * @param expired handler of the timed out items
+	 * @return the number of timed out items
+	 */
+	public int advance(long nowMillis, Consumer<T> expired) {
+		long nowTick = nowMillis / tickMillis;
+		int count = 0;
+
+		while (currentTick < nowTick) {
+			if (size == 0) {	// nothing to expire nor to move down, skip straight to the current tick
+				currentTick = nowTick;
+				break;
+			}
+
+			currentTick++;
+
+			// at the start of a bucket of the levels above, move its nodes down, the highest level first
+			int level = 0;
+			while (level + 1 < levels.length && (currentTick & ((1L << (bits * (level + 1))) - 1)) == 0) {
+				level++;
+			}
+			for (; level > 0; level--) {
+				cascade(level);
+			}
+
+			// detach the bucket first, as the handler may schedule new timeouts while it is being expired
+			int bucket = (int) currentTick & mask;
+			Node<T> node = levels[0][bucket];
+			levels[0][bucket] = null;
+
+			while (node != null) {
+				Node<T> next = node.next;
+				size--;
+				count++;
+				expired.accept(node.item);
+				node = next;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Moves the nodes of the level's bucket starting at the current tick to the levels below
+	 *
+	 * @param level the level
+	 */
+	private void cascade(int level) {
+		Node<T>[] buckets = levels[level];
+		if (buckets == null)
+			return;
+
+		int bucket = (int) (currentTick >>> (bits * level)) & mask;
+		Node<T> node = buckets[bucket];
+		buckets[bucket] = null;
+
+		while (node != null) {
+			Node<T> next = node.next;
+			insert(node);
+			node = next;
+		}
+	}
+
+	/**
+	 * Drops every timeout, e.g. once the owner knows none of the items still matters, so that the wheel need
+	 * not be advanced any longer
+	 */
+	public void clear() {
+		for (Node<T>[] buckets : levels) {
+			if (buckets != null) {
+				Arrays.fill(buckets, null);
+			}
+		}
+		size = 0;
+	}
+
+	/**
+	 * @return the resolution of the timeouts, i.e. how often the wheel should be advanced while not empty
+	 */
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -1,16 +1,36 @@
 package utils;
 
+import java.nio.charset.StandardCharsets;
+
 public class Utils {
 	
 	public static final int HASH_INITVAL = 0x31415926;
 	
 	/**
-	 * Given a string, hashes it to a long 
+	 * Given a string, hashes it to a 64-bit long; the high half is the 32-bit Jenkins hash of the content
+	 * and the low half is the Jenkins hash chained with the high half as its initial value 
 	 * @param content string
 	 * @return a hash-value in long
 	 */
 	public static long hashString(String content) {
-		byte[] byteArray = content.getBytes();
-		return JenkinsHash.getInstance().hash(byteArray, byteArray.length, HASH_INITVAL) & 0x00000000ffffffffL;
+		byte[] byteArray = content.getBytes(StandardCharsets.UTF_8);
+		JenkinsHash jenkinsHash = JenkinsHash.getInstance();
+		int high = jenkinsHash.hash(byteArray, byteArray.length, HASH_INITVAL);
+		int low = jenkinsHash.hash(byteArray, byteArray.length, high);
+		return ((long) high << 32) | (low & 0x00000000ffffffffL);
+	}
+	
+	/**
+	 * Decodes a big-endian 8-byte frame (e.g., op-code or request id) into a long without wrapping it
+	 * in a ByteBuffer
+	 * @param bytes frame of at least 8 bytes
+	 * @return the decoded long value
+	 */
+	public static long bytesToLong(byte[] bytes) {
+		long value = 0;
+		for (int i = 0; i < Long.BYTES; i++) {
+			value = (value << 8) | (bytes[i] & 0xff);
+		}
+		return value;
 	}
-}
+}
\ No newline at end of file